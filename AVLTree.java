@@ -1,4 +1,41 @@
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
 /**
  *
  * AVLTree
@@ -9,16 +46,42 @@
  */
 
 public class AVLTree { 
-	private final IAVLNode VIRTUAL = new AVLNode(-1, null);
+	private static final IAVLNode VIRTUAL = new AVLNode(-1, null); //shared by all trees, its setters do nothing
+	private static final int TREE_BYTES = 64; //header + the fields below (compressed oops)
+	private static final int NODE_BYTES = 40; //header + key, size + 4 references + height, flags and arena handle, 8-aligned
+	private static final int LAZY_COMPACT_STEP = 4; //tombstones a lazy delete removes once they dominate
+	private static final int RANGE_CHUNK = 64; //items a range scan reads per search
 	private IAVLNode root;
 	private IAVLNode min; //node with minimal key
 	private IAVLNode max; // node with max key
+	private NodePool pool; // free nodes for insert and join, null if not enabled
+	private BalancePolicy policy = BalancePolicy.AVL;
+	private ValueArena arena; // where new infos are stored, null to keep them as Strings
+	private boolean lazyDelete; // delete only marks nodes as tombstones
+	private int tombstones; // nodes marked deleted but still linked
+	private int[] pendingKeys = new int[0]; // keys of tombstones to compact (may hold revived keys)
+	private int pendingCount;
+	private int pendingSweep; // next index sweepPending looks at
+	private int joinRebalances; // rebalancing operations done by joinNodes, for OperationEvent
+	
+	/**
+	 * rebalancing rule used by delete. Both rules rebalance inserts the same way.
+	 * AVL - every node is 1,1 or 1,2. A delete may rotate on every level up to the root.
+	 * WAVL - internal nodes may also be 2,2 (rank-balanced, Haeupler, Sen & Tarjan).
+	 *        A delete does at most 2 rotations and O(1) amortized rank changes.
+	 *        A tree that only had inserts is a valid AVL tree.
+	 */
+	public enum BalancePolicy { AVL, WAVL }
 	
 public AVLTree() { //O(1)
 	this.root = VIRTUAL;
 	this.min = null;
 	this.max = null;
 }
+public AVLTree(BalancePolicy policy) { //O(1)
+	this();
+	this.policy = policy;
+}
 //build's a subtree from node
 public AVLTree(IAVLNode node) { //O(log(n))
 	this.root = node;
@@ -35,7 +98,7 @@ public AVLTree(IAVLNode node) { //O(log(n))
    *
    */
   public boolean empty() {   //O(1)
-	  if(this.root.getKey() == VIRTUAL.getKey()) {
+	  if(this.root.getSize() == 0) { // no node, or only tombstones
 		  return true;
 	  }
     return false;
@@ -55,7 +118,7 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	  }
 	  while(currRoot.getKey() != -1) {
 		  if (currRoot.getKey() == k ) {
-			  return currRoot.getValue();
+			  return isTombstone(currRoot) ? null : currRoot.getValue();
 		  }
 		  if (k > currRoot.getKey()) {
 			  currRoot = currRoot.getRight();
@@ -67,6 +130,32 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	  return null;
   }
 
+  /**
+   * public void searchAll(int[] sortedKeys, String[] out)
+   *
+   * sets out[j] to the info of the item with key sortedKeys[j], or null if it is not in the tree.
+   * The tree is walked once for the whole batch: each node splits the remaining
+   * probes between its two subtrees, so probes share the top of their paths.
+   * precondition: sortedKeys is sorted, out.length >= sortedKeys.length
+   */
+  public void searchAll(int[] sortedKeys, String[] out) //O(m*log(n/m + 1))
+  {
+	  searchRange(this.root, sortedKeys, 0, sortedKeys.length, out, null);
+  }
+
+  /**
+   * public BitSet containsAll(int[] sortedKeys)
+   *
+   * returns a bitmap where bit j is set if and only if sortedKeys[j] is in the tree.
+   * precondition: sortedKeys is sorted
+   */
+  public BitSet containsAll(int[] sortedKeys) //O(m*log(n/m + 1))
+  {
+	  BitSet found = new BitSet(sortedKeys.length);
+	  searchRange(this.root, sortedKeys, 0, sortedKeys.length, null, found);
+	  return found;
+  }
+
   /**
    * public int insert(int k, String i)
    *
@@ -77,12 +166,32 @@ public AVLTree(IAVLNode node) { //O(log(n))
    * returns -1 if an item with key k already exists in the tree.
    */
    public int insert(int k, String i) { //O(log(n))
+	   OperationEvent event = new OperationEvent();
+	   if(!event.isEnabled()) {
+		   return doInsert(k, i);
+	   }
+	   event.begin();
+	   int cnt = doInsert(k, i);
+	   event.end();
+	   if(event.shouldCommit()) {
+		   IAVLNode node = locate(k);
+		   event.commit("insert", k, node.getKey() == -1 ? 0 : depth(node), cnt, this.size());
+	   }
+	   return cnt;
+   }
+
+   private int doInsert(int k, String i) { //O(log(n))
 	    int cnt = 0;
-	   	IAVLNode toInsert = new AVLNode(k,i);
-	   	if(search(k) != null) { 
+	    IAVLNode existing = locate(k);
+	   	if(existing.getKey() != -1) { 
+	   		if(isTombstone(existing)) { // the key was deleted lazily, bring the node back
+	   			revive(existing, i);
+	   			return 0;
+	   		}
 	   		return -1;
 	   	}
-	   	if(this.getRoot().getSize() == 0) {
+	   	IAVLNode toInsert = newNode(k, i);
+	   	if(this.root.getKey() == -1) {
 	   		this.root = toInsert;
 	   		this.min = this.root;
 	   		this.max = this.root;
@@ -118,30 +227,274 @@ public AVLTree(IAVLNode node) { //O(log(n))
    
    public int delete(int k) //O(log(n))
    {
-	   int cnt = 0;
+	   OperationEvent event = new OperationEvent();
+	   if(!event.isEnabled()) {
+		   return doDelete(k);
+	   }
+	   IAVLNode node = findNode(k); // the path is gone after the delete, measure it first
+	   int path = node.getKey() == -1 ? 0 : depth(node);
+	   event.begin();
+	   int cnt = doDelete(k);
+	   event.end();
+	   if(event.shouldCommit()) {
+		   event.commit("delete", k, path, cnt, this.size());
+	   }
+	   return cnt;
+   }
+
+   private int doDelete(int k) //O(log(n))
+   {
 	   IAVLNode toDelete = findNode(k);
-	   if(this.root.getKey() == -1) { // empty tree
+	   if(toDelete.getKey() == -1) { // node not in tree (or empty tree)
+		   return -1;
+	   }
+	   if(this.lazyDelete && toDelete instanceof AVLNode) {
+		   markDeleted((AVLNode) toDelete);
+		   return 0;
+	   }
+	   return deleteNode(toDelete);
+   }
+
+   /**
+    * public void setLazyDelete(boolean lazy)
+    *
+    * In lazy mode delete (and pollFirst, pollLast, drainFirst) only marks the node as a tombstone
+    * and takes it off the sizes along its path, with no unlinking or rebalancing. size(), keysToArray(), search() and
+    * the rest skip tombstones. They are removed later by compact(), by split/join/partition,
+    * or a few at a time by delete itself once they outnumber the live items.
+    * Turning lazy mode off removes all tombstones.
+    */
+   public void setLazyDelete(boolean lazy) //O(1), or O(t*log(n)) when turned off
+   {
+	   this.lazyDelete = lazy;
+	   if(!lazy) {
+		   purgeTombstones();
+	   }
+   }
+
+   /**
+    * public int tombstoneCount()
+    *
+    * Returns the number of lazily deleted nodes still in the tree.
+    */
+   public int tombstoneCount() //O(1)
+   {
+	   return this.tombstones;
+   }
+
+   /**
+    * public int compact(int maxRemovals)
+    *
+    * Unlinks up to maxRemovals tombstones, each like an eager delete.
+    * When every tombstone may go and they outnumber the live items, the tree is rebuilt
+    * from the live nodes instead (O(n), cheaper than that many deletes).
+    * Returns the number of tombstones removed. Must run on the thread that owns the tree.
+    */
+   public int compact(int maxRemovals) //O((maxRemovals + revived keys)*log(n))
+   {
+	   return compact(maxRemovals, Integer.MAX_VALUE);
+   }
+
+   /**
+    * compact(maxRemovals), looking at no more than maxLooks pending keys
+    */
+   private int compact(int maxRemovals, int maxLooks) //O(min(maxRemovals, maxLooks)*log(n))
+   {
+	   if(this.tombstones == 0 || maxRemovals <= 0) {
+		   return 0;
+	   }
+	   if(maxRemovals >= this.tombstones && this.tombstones > this.size()) {
+		   int removed = this.tombstones;
+		   rebuild();
+		   return removed;
+	   }
+	   int removed = 0;
+	   for(int looks = 0; removed < maxRemovals && looks < maxLooks && this.pendingCount > 0; looks++) {
+		   this.pendingCount--;
+		   IAVLNode node = locate(this.pendingKeys[this.pendingCount]);
+		   clearPending(node);
+		   if(isTombstone(node)) { // else it was revived, or already removed
+			   this.tombstones--;
+			   deleteNode(node);
+			   removed++;
+		   }
+	   }
+	   return removed;
+   }
+
+   /**
+    * public String pollFirst()
+    *
+    * deletes the item with the smallest key and returns its info,
+    * or null if the tree is empty.
+    * Starts at the min node, without searching from the root.
+    */
+   public String pollFirst() //O(log(n)) for the sizes, O(1) amortized rebalancing
+   {
+	   if(this.min == null) {
+		   return null;
+	   }
+	   String info = this.min.getValue();
+	   removeNode(this.min);
+	   return info;
+   }
+
+   /**
+    * public String pollLast()
+    *
+    * deletes the item with the largest key and returns its info,
+    * or null if the tree is empty.
+    * Starts at the max node, without searching from the root.
+    */
+   public String pollLast() //O(log(n)) for the sizes, O(1) amortized rebalancing
+   {
+	   if(this.max == null) {
+		   return null;
+	   }
+	   String info = this.max.getValue();
+	   removeNode(this.max);
+	   return info;
+   }
+
+   /**
+    * public int peekFirstKey()
+    *
+    * Returns the smallest key in the tree, or -1 if the tree is empty
+    */
+   public int peekFirstKey() //O(1)
+   {
+	   if(this.min == null) {
 		   return -1;
 	   }
-	   if(findNode(k).getKey() == -1) { // node not in tree
+	   return this.min.getKey();
+   }
+
+   /**
+    * public int peekLastKey()
+    *
+    * Returns the largest key in the tree, or -1 if the tree is empty
+    */
+   public int peekLastKey() //O(1)
+   {
+	   if(this.max == null) {
 		   return -1;
 	   }
-	   // node k is in tree
-	   if(this.root.getKey() == toDelete.getKey() && this.root.getSize() == 1) { //tree with one node, k
+	   return this.max.getKey();
+   }
+
+   /**
+    * public int drainFirst(int n, EntryConsumer sink)
+    *
+    * deletes the n items with the smallest keys (all items if there are fewer)
+    * and passes each one to sink in increasing key order, after it was deleted.
+    * Returns the number of items drained.
+    */
+   public int drainFirst(int n, EntryConsumer sink) //O(n*log(size))
+   {
+	   int cnt = 0;
+	   while(cnt < n && this.min != null) {
+		   int key = this.min.getKey();
+		   String info = this.min.getValue();
+		   removeNode(this.min);
+		   sink.accept(key, info);
+		   cnt++;
+	   }
+	   return cnt;
+   }
+
+   /**
+    * public interface EntryConsumer
+    *
+    * receives the items taken out by drainFirst
+    */
+   public interface EntryConsumer {
+	   public void accept(int key, String info);
+   }
+
+   /**
+    * public Flow.Publisher<Entry> rangePublisher(int lo, int hi)
+    *
+    * Returns a publisher of the items with lo <= key <= hi, in increasing key order.
+    * Every subscriber gets its own scan, paced by request(n): items are copied in chunks of
+    * at most RANGE_CHUNK, each chunk starting with a search for the first key after the last
+    * one sent, so the tree may change between chunks (also from inside onNext).
+    * Memory per subscriber is one chunk, whatever the size of the range.
+    * The scan runs on the thread that calls request, which must be allowed to read the tree.
+    */
+   public Flow.Publisher<Entry> rangePublisher(int lo, int hi) //O(1), then O(log(n) + chunk) per chunk
+   {
+	   return subscriber -> {
+		   if(subscriber == null) {
+			   throw new NullPointerException("subscriber");
+		   }
+		   subscriber.onSubscribe(new RangeSubscription(this, lo, hi, subscriber));
+	   };
+   }
+
+   /**
+    * @return the live node with the smallest key >= k, or null if there is none
+    */
+   private IAVLNode ceilingNode(int k) { //O(log(n)), plus the tombstones skipped
+	   IAVLNode node = this.root;
+	   IAVLNode ceiling = null;
+	   while(node.getKey() != -1) {
+		   if(node.getKey() >= k) {
+			   ceiling = node;
+			   node = node.getLeft();
+		   }
+		   else {
+			   node = node.getRight();
+		   }
+	   }
+	   while(ceiling != null && isTombstone(ceiling)) {
+		   ceiling = successor(ceiling);
+	   }
+	   return ceiling;
+   }
+
+   /**
+    * deletes node as delete does: marks it as a tombstone in lazy mode, unlinks it otherwise.
+    * A pending node must not be unlinked behind pendingKeys, or a later node with its key gets listed twice.
+    */
+   private void removeNode(IAVLNode node) { //O(log(n))
+	   if(this.lazyDelete && node instanceof AVLNode) {
+		   markDeleted((AVLNode) node);
+	   }
+	   else {
+		   deleteNode(node);
+	   }
+   }
+
+   /**
+    * deletes toDelete from the tree
+    * @pre toDelete is a node of the tree
+    * @return the number of rebalancing operations, as in delete
+    */
+   private int deleteNode(IAVLNode toDelete) //O(log(n))
+   {
+	   int cnt = 0;
+	   if(this.root.getKey() == toDelete.getKey() && this.root.getLeft().getKey() == -1 && this.root.getRight().getKey() == -1) { //tree with one node, k
 		   this.root = VIRTUAL;   
 		   this.min = null;
 		   this.max = null;
+		   releaseNode(toDelete);
 		   return cnt;
 	   }
 	   updateMinMaxDelete(toDelete);
 	   IAVLNode curr = fixPointerDelete(toDelete); //delete the item
+	   releaseNode(toDelete);
 	   if(curr != null) {
-		   updateSize(curr,-1);
+		   recountSizes(curr);
 	   }
 	   else { //if curr == null then we deleted the root
-		   this.root.setSize(this.root.getLeft().getSize() + this.root.getRight().getSize() + 1);
+		   recountSizes(this.root);
+	   }
+	   if(this.policy == BalancePolicy.WAVL) {
+		   cnt = rebalanceDeleteWAVL(curr);
+	   }
+	   else {
+		   cnt = rebalanceDelete(curr);
 	   }
-	   cnt = rebalanceDelete(curr);
 	   return cnt;	
    }
 
@@ -242,55 +595,236 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	   return this.root;
    }
    
+     /**
+    * public BalancePolicy getBalancePolicy()
+    *
+    * Returns the rule delete rebalances by. It is set when the tree is built
+    * and passed on to the trees returned by split.
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public BalancePolicy getBalancePolicy() //O(1)
+   {
+	   return this.policy;
+   }
+   
+     /**
+    * public FrozenAVLTree freeze()
+    *
+    * Returns an immutable copy of the tree laid out for fast lookups.
+    * Later changes to the tree do not show in the copy.
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public FrozenAVLTree freeze() //O(n)
+   {
+	   return new FrozenAVLTree(this.keysToArray(), this.infoToArray());
+   }
+   
+     /**
+    * public long memoryFootprint()
+    *
+    * Returns an estimate, in bytes, of the heap held by the tree and its nodes
+    * on a 64-bit JVM with compressed oops. The info Strings are not counted,
+    * they belong to the caller.
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public long memoryFootprint() //O(1)
+   {
+	   return TREE_BYTES + 4L * this.pendingKeys.length
+			   + (long) (this.size() + this.tombstones) * NODE_BYTES;
+   }
+   
+     /**
+    * public ShapeReport shapeReport()
+    *
+    * Walks the tree and returns its shape: how many nodes sit at each depth, the depths of
+    * the shallowest and deepest leaves, and getHeight() of the root against the height of a
+    * perfectly balanced tree of the same size. Tombstones are counted as nodes.
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public ShapeReport shapeReport() //O(n)
+   {
+	   ShapeReport report = new ShapeReport(this.size() + this.tombstones, this.root.getHeight());
+	   report.walk(this.root, 0);
+	   return report;
+   }
+   
+     /**
+    * public void useValueArena(ValueArena arena)
+    *
+    * Stores the infos of items inserted from now on in arena instead of as Strings;
+    * the nodes keep only a handle and decode the info when getValue() is called.
+    * An arena may be shared by several trees. null goes back to plain Strings.
+    * memoryFootprint() does not count the arena, see ValueArena.offHeapBytes().
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public void useValueArena(ValueArena arena) //O(1)
+   {
+	   this.arena = arena;
+   }
+   
+     /**
+    * public ByteBuffer searchBytes(int k)
+    *
+    * Returns the UTF-8 bytes of the info of the item with key k, or null if it is not in the tree
+    * (or its info is null). For infos stored in a ValueArena this is a read-only view of
+    * the arena, no String is built.
+    *
+    * precondition: none
+    * postcondition: none
+    */
+   public ByteBuffer searchBytes(int k) //O(log(n))
+   {
+	   IAVLNode node = findNode(k);
+	   if(node instanceof AVLNode && ((AVLNode) node).info instanceof ValueArena) {
+		   AVLNode arenaNode = (AVLNode) node;
+		   return ((ValueArena) arenaNode.info).bytes(arenaNode.handle());
+	   }
+	   if(node.getValue() == null) {
+		   return null;
+	   }
+	   return ByteBuffer.wrap(node.getValue().getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+   }
+   
+     /**
+    * public void enableNodePool(int capacity)
+    *
+    * Keeps up to capacity deleted nodes and reuses them for later inserts
+    * and joins instead of allocating. capacity 0 turns the pool off.
+    * Nodes returned by getRoot() or findNode() may be reused once their key is deleted.
+    *
+    * precondition: capacity >= 0
+    * postcondition: none
+    */
+   public void enableNodePool(int capacity) //O(1)
+   {
+	   this.pool = capacity == 0 ? null : new NodePool(capacity);
+   }
+   
+     /**
+    * public long getPoolHits()
+    *
+    * Returns the number of nodes taken from the pool instead of allocated,
+    * or 0 if the pool is not enabled.
+    */
+   public long getPoolHits() //O(1)
+   {
+	   return this.pool == null ? 0 : this.pool.hits;
+   }
+   
+     /**
+    * public long getPoolMisses()
+    *
+    * Returns the number of nodes allocated while the pool was empty,
+    * or 0 if the pool is not enabled.
+    */
+   public long getPoolMisses() //O(1)
+   {
+	   return this.pool == null ? 0 : this.pool.misses;
+   }
+   
      /**
     * public string split(int x)
     *
     * splits the tree into 2 trees according to the key x. 
     * Returns an array [t1, t2] with two AVL trees. keys(t1) < x < keys(t2).
+    * The nodes move to t1 and t2, this tree is left empty.
 	  * precondition: search(x) != null (i.e. you can also assume that the tree is not empty)
     * postcondition: none
     */   
    public AVLTree[] split(int x)  //O(log(n))
    {
-	   IAVLNode curr = findNode(x);
-	   AVLTree small = new AVLTree(curr.getLeft());
-	   AVLTree big = new AVLTree(curr.getRight());
-	   IAVLNode parent = curr.getParent();
-	   AVLTree add = new AVLTree(); 
-	   while(parent != null) {
-		   if(curr.getKey() == parent.getRight().getKey()) { //curr is a right child
-			   curr = parent;
-			   parent = parent.getParent();
-			   if(curr.getLeft().getKey() != -1) {
-				   add = new AVLTree(curr.getLeft());
-			   }
-			   curr.setParent(null);
-			   curr.setRight(VIRTUAL);
-			   curr.setLeft(VIRTUAL);
-			   curr.setSize(1);
-			   curr.setHeight(0);
-			   small.join(curr, add);
-		   }
-		   else { // curr is a left child
-			   curr = parent;
-			   parent = parent.getParent();
-			   if(curr.getRight().getKey() != -1) {
-				   add = new AVLTree(curr.getRight());
-			   }
-			   curr.setParent(null);
-			   curr.setRight(VIRTUAL);
-			   curr.setLeft(VIRTUAL);
-			   curr.setSize(1);
-			   curr.setHeight(0);
-			   big.join(curr, add);   
-		   }
+	   OperationEvent event = new OperationEvent();
+	   if(!event.isEnabled()) {
+		   return doSplit(x);
 	   }
+	   event.begin(); // the tombstone purge is part of the split's cost
+	   purgeTombstones();
+	   int path = depth(findNode(x));
+	   int n = this.size();
+	   this.joinRebalances = 0;
+	   AVLTree[] arr = doSplit(x);
+	   event.end();
+	   if(event.shouldCommit()) {
+		   event.commit("split", x, path, this.joinRebalances, n);
+	   }
+	   return arr;
+   }
+
+   private AVLTree[] doSplit(int x)  //O(log(n))
+   {
+	   purgeTombstones();
+	   IAVLNode pivot = findNode(x);
+	   IAVLNode smallMax = predecessor(pivot); // the new min and max are known before the tree is taken apart
+	   IAVLNode bigMin = successor(pivot);
+	   IAVLNode[] roots = splitNodes(pivot);
 	   AVLTree[] arr = new AVLTree[2];
-	   arr[0] = small;
-	   arr[1] = big;
+	   arr[0] = subtree(roots[0], this.min, smallMax);
+	   arr[1] = subtree(roots[1], bigMin, this.max);
+	   releaseNode(pivot);
+	   this.root = VIRTUAL;
+	   this.min = null;
+	   this.max = null;
 	   return arr; 
    }
    
+     /**
+    * public AVLTree[] partition(int k)
+    *
+    * splits the tree into k trees by rank: every key of a tree is smaller than the keys of the next,
+    * and the sizes differ by at most one (trees are empty if k > size()).
+    * The nodes move to the new trees, this tree is left empty.
+    * Each new tree gets its own node pool (of the same capacity, empty), so the parts can be
+    * used from different threads. They do share this tree's ValueArena, which is not thread-safe:
+    * with an arena set, parts must not be used from different threads at the same time.
+	  * precondition: k > 0
+    * postcondition: none
+    */   
+   public AVLTree[] partition(int k)  //O(k*log(n))
+   {
+	   if(k <= 0) {
+		   throw new IllegalArgumentException("k must be positive: " + k);
+	   }
+	   purgeTombstones();
+	   AVLTree[] arr = new AVLTree[k];
+	   int n = this.size();
+	   IAVLNode rest = this.root;
+	   for(int i = 0; i < k - 1; i++) {
+		   int partSize = n / k + (i < n % k ? 1 : 0);
+		   IAVLNode part = VIRTUAL;
+		   if(partSize == rest.getSize()) { // the parts after this one are empty
+			   part = rest;
+			   rest = VIRTUAL;
+		   }
+		   else if(partSize > 0) {
+			   IAVLNode first = select(rest, partSize); // first node of the next part
+			   IAVLNode[] roots = splitNodes(first);
+			   part = roots[0];
+			   rest = joinNodes(VIRTUAL, first, roots[1]);
+		   }
+		   arr[i] = subtree(part, getMin(part), getMax(part));
+	   }
+	   arr[k - 1] = subtree(rest, getMin(rest), getMax(rest));
+	   if(this.pool != null) {
+		   for(int i = 0; i < k; i++) {
+			   arr[i].pool = new NodePool(this.pool.free.length);
+		   }
+	   }
+	   this.root = VIRTUAL;
+	   this.min = null;
+	   this.max = null;
+	   return arr;
+   }
+   
    /**
     * public join(IAVLNode x, AVLTree t)
     *
@@ -301,10 +835,27 @@ public AVLTree(IAVLNode node) { //O(log(n))
     */   
    public int join(IAVLNode x, AVLTree t) //O(log(|Rank.this - Rank.t| + 1)
    {
-	   AVLTree small = new AVLTree();
-	   AVLTree big = new AVLTree();
-	   
-	   if(this.root.getKey() < x.getKey()) {
+	   OperationEvent event = new OperationEvent();
+	   if(!event.isEnabled()) {
+		   return doJoin(x, t);
+	   }
+	   this.joinRebalances = 0;
+	   event.begin();
+	   int cost = doJoin(x, t);
+	   event.end();
+	   if(event.shouldCommit()) { // x went down cost - 1 levels of the taller tree
+		   event.commit("join", x.getKey(), cost - 1, this.joinRebalances, this.size());
+	   }
+	   return cost;
+   }
+
+   private int doJoin(IAVLNode x, AVLTree t) //O(log(|Rank.this - Rank.t| + 1)
+   {
+	   purgeTombstones();
+	   t.purgeTombstones();
+	   AVLTree small;
+	   AVLTree big;
+	   if(this.empty() ? (!t.empty() && t.root.getKey() > x.getKey()) : this.root.getKey() < x.getKey()) {
 		   small = this;
 		   big = t; 
 	   }
@@ -312,97 +863,219 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		   small = t;
 		   big = this;
 	   }
-	   if(this.empty()) {
-		   this.root = t.root;
-		   this.min = t.min;
-		   this.max = t.max;
-		   this.insert(x.getKey(), x.getValue());
-		   return this.root.getHeight() + 1;
-		   
-	   }
-	   if(t.empty()){
-		  this.insert(x.getKey(), x.getValue());
-		  return this.root.getHeight() + 1;
-	
-	   }
-	   if(this.empty() && t.empty()) {
-		   this.root = x;
-		   this.min = x;
-		   this.max = x;
-		   x.setParent(null);
-		   x.setLeft(VIRTUAL);
-		   x.setRight(VIRTUAL);
-		   x.setHeight(0);
+	   boolean oneEmpty = small.empty() || big.empty();
+	   int diff = Math.abs(small.root.getHeight() - big.root.getHeight());
+	   IAVLNode newMin = small.empty() ? x : small.min;
+	   IAVLNode newMax = big.empty() ? x : big.max;
+	   this.root = joinNodes(small.root, x, big.root);
+	   this.min = newMin;
+	   this.max = newMax;
+	   if(oneEmpty) {
 		   return this.root.getHeight() + 1;
 	   }
-	   
-	   if(big.root.getHeight() == small.root.getHeight()) {
-		   x.setSize(small.root.getSize() + big.getRoot().getSize() + 1);
-		   x.setHeight(big.root.getHeight() + 1);
-		   x.setLeft(small.root);
-		   x.setRight(big.root);
-		   x.setParent(null);
-		   this.root = x;
-		   this.min = small.min;
-		   this.max = big.max;
-		   return 1;
-	   }
-	   
-	   int addSize = 0;
-	   int diff = 0;
-	   if(big.root.getHeight() > small.root.getHeight()) { //big is higher
-		  diff = big.root.getHeight() - small.root.getHeight();
-		   addSize = small.size() + 1;
-		  IAVLNode curr = big.root;
-		  IAVLNode parent = curr.getParent();
-		   while(curr.getHeight() > small.root.getHeight()) { //will stop with curr with height like small.root or smaller by 1
-			   parent = curr;
+	   return diff + 1; 
+   }
+   
+   
+   /////////////////FUNCTIONS WE ADDED///////////////////////////
+
+   /**
+    * @return a node with key k and info i, taken from the pool if possible
+    */
+   private IAVLNode newNode(int k, String i) { //O(1), plus the arena lookup of i
+	   AVLNode node = null;
+	   if(this.pool != null) {
+		   if(this.pool.size == 0) {
+			   this.pool.misses++;
+		   }
+		   else {
+			   this.pool.hits++;
+			   this.pool.size--;
+			   node = this.pool.free[this.pool.size];
+			   this.pool.free[this.pool.size] = null;
+		   }
+	   }
+	   if(node == null) {
+		   node = new AVLNode(k, null);
+	   }
+	   else {
+		   node.reset(k);
+	   }
+	   node.setInfo(i, this.arena);
+	   return node;
+   }
+   
+   /**
+    * gives a node that is no longer linked to the tree back to the pool
+    */
+   private void releaseNode(IAVLNode node) { //O(1)
+	   if(this.pool != null && this.pool.size < this.pool.free.length && node instanceof AVLNode) {
+		   AVLNode free = (AVLNode) node;
+		   free.reset(-1);
+		   this.pool.free[this.pool.size] = free;
+		   this.pool.size++;
+	   }
+   }
+   
+   /**
+    * @return a tree over root with the given min and max nodes, sharing this tree's pool and policy
+    */
+   private AVLTree subtree(IAVLNode root, IAVLNode min, IAVLNode max) { //O(1)
+	   AVLTree tree = new AVLTree(this.policy);
+	   tree.pool = this.pool;
+	   tree.arena = this.arena;
+	   tree.lazyDelete = this.lazyDelete;
+	   root.setParent(null);
+	   if(root.getKey() != -1) {
+		   tree.root = root;
+		   tree.min = min;
+		   tree.max = max;
+	   }
+	   return tree;
+   }
+   
+   /**
+    * joins the subtrees small and big with x between them, without building AVLTree objects
+    * @pre keys(small) < x.key < keys(big), small and big are roots (or VIRTUAL)
+    * @return the root of the joined subtree
+    */
+   private IAVLNode joinNodes(IAVLNode small, IAVLNode x, IAVLNode big) { //O(|Rank.small - Rank.big| + 1)
+	   small.setParent(null);
+	   big.setParent(null);
+	   x.setParent(null);
+	   if(small.getHeight() == big.getHeight()) {
+		   x.setLeft(small);
+		   x.setRight(big);
+		   small.setParent(x);
+		   big.setParent(x);
+		   updateHeight(x);
+		   x.setSize(small.getSize() + big.getSize() + 1);
+		   return x;
+	   }
+	   IAVLNode parent = null;
+	   IAVLNode curr;
+	   if(big.getHeight() > small.getHeight()) { //big is higher
+		   curr = big;
+		   while(curr.getHeight() > small.getHeight()) { //will stop with curr with height like small or smaller by 1
+			   parent = curr;
 			   curr = curr.getLeft();
 		   }
-		   x.setLeft(small.root);
+		   x.setLeft(small);
 		   x.setRight(curr);
 		   parent.setLeft(x);
-		   small.root.setParent(x);
-		   x.setParent(parent);
-		   curr.setParent(x);
-		   updateHeight(x);
-		   x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
-		   this.root = big.root;
-		   this.min = small.min;
-		   this.max = big.max;
-		   
 	   }
-	   else if(small.root.getHeight() > big.root.getHeight()) { // small is higher
-		  diff = small.root.getHeight() - big.root.getHeight();
-		  addSize = big.size() + 1;
-		  IAVLNode curr = small.root;
-		  IAVLNode parent = curr.getParent();
-		  while(curr.getHeight() > big.root.getHeight()) { //will stop with curr with height like big.root or smaller by 1
-			  parent = curr; 
-			  curr = curr.getRight();
-		   }
-		   x.setSize(big.root.getSize() + curr.getSize() + 1);
-		   x.setRight(big.root);
+	   else { // small is higher
+		   curr = small;
+		   while(curr.getHeight() > big.getHeight()) { //will stop with curr with height like big or smaller by 1
+			   parent = curr;
+			   curr = curr.getRight();
+		   }
 		   x.setLeft(curr);
+		   x.setRight(big);
 		   parent.setRight(x);
-		   big.root.setParent(x);
-		   x.setParent(parent);
-		   curr.setParent(x);
-		   updateHeight(x);
-		   x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
-		   this.root = small.root;
-		   this.min = small.min;
-		   this.max = big.max;
 	   }
-	   updateSize(x.getParent(), addSize);
-	   rebalanceInsert(x.getParent());
-	   
-	   return diff + 1; 
+	   x.getLeft().setParent(x);
+	   x.getRight().setParent(x);
+	   x.setParent(parent);
+	   updateHeight(x);
+	   x.setSize(x.getLeft().getSize() + x.getRight().getSize() + 1);
+	   updateSize(parent, x.getSize() - curr.getSize());
+	   this.joinRebalances += rebalanceInsert(parent);
+	   while(x.getParent() != null) { // x sits about |Rank.small - Rank.big| levels below the root
+		   x = x.getParent();
+	   }
+	   return x;
+   }
+   
+   /**
+    * cuts the tree around pivot, joining the subtrees on each side of the path to the root
+    * @pre pivot is a node of the tree
+    * @return [root of the keys smaller than pivot, root of the keys bigger than pivot]
+    */
+   private IAVLNode[] splitNodes(IAVLNode pivot) { //O(log(n))
+	   IAVLNode small = pivot.getLeft();
+	   IAVLNode big = pivot.getRight();
+	   IAVLNode curr = pivot;
+	   IAVLNode parent = pivot.getParent();
+	   while(parent != null) {
+		   IAVLNode next = parent.getParent();
+		   if(curr.getKey() == parent.getRight().getKey()) { //curr is a right child
+			   small = joinNodes(parent.getLeft(), parent, small);
+		   }
+		   else { // curr is a left child
+			   big = joinNodes(big, parent, parent.getRight());
+		   }
+		   curr = parent;
+		   parent = next;
+	   }
+	   small.setParent(null);
+	   big.setParent(null);
+	   IAVLNode[] roots = new IAVLNode[2];
+	   roots[0] = small;
+	   roots[1] = big;
+	   return roots;
    }
    
+   /**
+    * @pre 0 <= rank < node.getSize()
+    * @return the node with rank keys smaller than it in node's subtree
+    */
+   private IAVLNode select(IAVLNode node, int rank) { //O(log(n))
+	   while(rank != node.getLeft().getSize()) {
+		   if(rank < node.getLeft().getSize()) {
+			   node = node.getLeft();
+		   }
+		   else {
+			   rank = rank - node.getLeft().getSize() - 1;
+			   node = node.getRight();
+		   }
+	   }
+	   return node;
+   }
+   
+   /**
+    * looks up the probes keys[from..to) in node's subtree, writing infos to out and hits to found (either may be null)
+    * @pre keys is sorted
+    */
+   private void searchRange(IAVLNode node, int[] keys, int from, int to, String[] out, BitSet found) { //O(m*log(n/m + 1))
+	   if(from >= to) {
+		   return;
+	   }
+	   if(node.getKey() == -1) { // none of the probes is in the tree
+		   if(out != null) {
+			   for(int j = from; j < to; j++) {
+				   out[j] = null;
+			   }
+		   }
+		   return;
+	   }
+	   int k = node.getKey();
+	   int lo = from;
+	   int hi = to;
+	   while(lo < hi) { // first probe >= k
+		   int mid = (lo + hi) >>> 1;
+		   if(keys[mid] < k) {
+			   lo = mid + 1;
+		   }
+		   else {
+			   hi = mid;
+		   }
+	   }
+	   int next = lo;
+	   boolean live = !isTombstone(node);
+	   while(next < to && keys[next] == k) {
+		   if(out != null) {
+			   out[next] = live ? node.getValue() : null;
+		   }
+		   if(found != null && live) {
+			   found.set(next);
+		   }
+		   next++;
+	   }
+	   searchRange(node.getLeft(), keys, from, lo, out, found);
+	   searchRange(node.getRight(), keys, next, to, out, found);
+   }
    
-   /////////////////FUNCTIONS WE ADDED///////////////////////////
-
    /**
     * @pre key k in not in tree
     * @post returned node is a leaf if key k is not in the tree
@@ -428,6 +1101,19 @@ public AVLTree(IAVLNode node) { //O(log(n))
     * else return VIRTUAL
     */
    public IAVLNode findNode(int k) { //O(log(n))
+	   IAVLNode node = locate(k);
+	   if(isTombstone(node)) {
+		   return VIRTUAL;
+	   }
+	   return node;
+   }
+   
+   /**
+    * finds the node with int k, tombstone or not
+    * if node in tree - return it
+    * else return VIRTUAL
+    */
+   private IAVLNode locate(int k) { //O(log(n))
 	   if(this.root.getKey() == -1 ) { //empty tree
 		   return VIRTUAL;
 	   }
@@ -475,7 +1161,11 @@ public AVLTree(IAVLNode node) { //O(log(n))
    }
    
    public void updateMinMaxInsert(IAVLNode toInsert) { //O(1)
-	   if(toInsert.getKey() < this.min.getKey()) {
+	   if(this.min == null) { // only tombstones in the tree
+		   this.min = toInsert;
+		   this.max = toInsert;
+	   }
+	   else if(toInsert.getKey() < this.min.getKey()) {
 	   		this.min = toInsert;
 	   	}
 	   else if(toInsert.getKey() > this.max.getKey()) {
@@ -484,13 +1174,15 @@ public AVLTree(IAVLNode node) { //O(log(n))
    }
    
    public void rotateRight(IAVLNode upper, IAVLNode lower) { //O(1)
-	   if(this.root.getKey() == upper.getKey()) {
+	   if(upper.getParent() == null) { // upper is the root of the tree, or of a subtree being joined
 		   lower.setParent(null);
 		   upper.setParent(lower);
 		   upper.setLeft(lower.getRight());
 		   lower.getRight().setParent(upper);
 		   lower.setRight(upper);
-		   this.root = lower;
+		   if(this.root == upper) {
+			   this.root = lower;
+		   }
 		   
 	   }
 	   else {
@@ -513,18 +1205,20 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		   	}
 		   
 	   }
-	   upper.setSize(upper.getLeft().getSize() + upper.getRight().getSize() + 1);
-	   lower.setSize(lower.getLeft().getSize() + lower.getRight().getSize() + 1);
+	   upper.setSize(upper.getLeft().getSize() + upper.getRight().getSize() + ownSize(upper));
+	   lower.setSize(lower.getLeft().getSize() + lower.getRight().getSize() + ownSize(lower));
    }
    
    public void rotateLeft(IAVLNode upper, IAVLNode lower) { //O(1)
-	   if(this.root.getKey() == upper.getKey()) {
+	   if(upper.getParent() == null) { // upper is the root of the tree, or of a subtree being joined
 		   lower.setParent(null);
 		   upper.setParent(lower);
 		   upper.setRight(lower.getLeft());
 		   lower.getLeft().setParent(upper);
 		   lower.setLeft(upper);
-		   this.root = lower;	   
+		   if(this.root == upper) {
+			   this.root = lower;
+		   }
 	   }
 
 	   else {
@@ -546,8 +1240,163 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		   }
 
 	   }
-	   upper.setSize(upper.getLeft().getSize() + upper.getRight().getSize() + 1);
-	   lower.setSize(lower.getLeft().getSize() + lower.getRight().getSize() + 1);
+	   upper.setSize(upper.getLeft().getSize() + upper.getRight().getSize() + ownSize(upper));
+	   lower.setSize(lower.getLeft().getSize() + lower.getRight().getSize() + ownSize(lower));
+   }
+   
+   /**
+    * sets the sizes from node up to the root from their children's sizes
+    */
+   private void recountSizes(IAVLNode node) { //O(log(n))
+	   while(node != null) {
+		   node.setSize(node.getLeft().getSize() + node.getRight().getSize() + ownSize(node));
+		   node = node.getParent();
+	   }
+   }
+   
+   /**
+    * @return the number of edges between node and the root
+    */
+   private static int depth(IAVLNode node) { //O(log(n))
+	   int depth = 0;
+	   while(node.getParent() != null) {
+		   node = node.getParent();
+		   depth++;
+	   }
+	   return depth;
+   }
+   
+   /**
+    * @return 0 for a tombstone, 1 for a live node
+    */
+   private static int ownSize(IAVLNode node) { //O(1)
+	   return isTombstone(node) ? 0 : 1;
+   }
+   
+   private static boolean isTombstone(IAVLNode node) { //O(1)
+	   return node instanceof AVLNode && (((AVLNode) node).bits & AVLNode.TOMBSTONE) != 0;
+   }
+   
+   private void markDeleted(AVLNode node) { //O(log(n))
+	   node.bits |= AVLNode.TOMBSTONE;
+	   updateSize(node, -1);
+	   this.tombstones++;
+	   if((node.bits & AVLNode.PENDING) == 0) { // else its key is still listed from an earlier delete
+		   node.bits |= AVLNode.PENDING;
+		   if(this.pendingCount == this.pendingKeys.length) {
+			   this.pendingKeys = Arrays.copyOf(this.pendingKeys, Math.max(16, 2 * this.pendingCount));
+		   }
+		   this.pendingKeys[this.pendingCount] = node.getKey();
+		   this.pendingCount++;
+	   }
+	   if(this.pendingCount > 2 * this.tombstones + 16) { // mostly keys revived or removed since
+		   sweepPending(LAZY_COMPACT_STEP);
+	   }
+	   updateMinMaxDelete(node);
+	   if(this.tombstones > this.size()) { // tombstones dominate, clear a few on every delete
+		   compact(LAZY_COMPACT_STEP, 2 * LAZY_COMPACT_STEP);
+	   }
+   }
+   
+   private void revive(IAVLNode node, String info) { //O(log(n))
+	   AVLNode live = (AVLNode) node;
+	   live.bits &= ~AVLNode.TOMBSTONE;
+	   live.setInfo(info, this.arena);
+	   updateSize(node, 1);
+	   this.tombstones--;
+	   updateMinMaxInsert(node);
+   }
+   
+   /**
+    * looks at the next steps pending keys, dropping those that are no longer tombstones.
+    * A full pass takes about pendingCount/steps lazy deletes, during which
+    * fewer keys are added than it drops, so pendingKeys stays within a constant of the tree.
+    */
+   private void sweepPending(int steps) { //O(steps*log(n))
+	   for(int j = 0; j < steps && this.pendingCount > 0; j++) {
+		   if(this.pendingSweep >= this.pendingCount) {
+			   this.pendingSweep = 0;
+		   }
+		   IAVLNode node = locate(this.pendingKeys[this.pendingSweep]);
+		   if(isTombstone(node)) {
+			   this.pendingSweep++;
+		   }
+		   else {
+			   clearPending(node);
+			   this.pendingCount--;
+			   this.pendingKeys[this.pendingSweep] = this.pendingKeys[this.pendingCount];
+		   }
+	   }
+	   if(this.pendingKeys.length > 16 && 4 * this.pendingCount < this.pendingKeys.length) {
+		   this.pendingKeys = Arrays.copyOf(this.pendingKeys, this.pendingKeys.length / 2);
+	   }
+   }
+   
+   private static void clearPending(IAVLNode node) { //O(1)
+	   if(node != VIRTUAL && node instanceof AVLNode) {
+		   ((AVLNode) node).bits &= ~AVLNode.PENDING;
+	   }
+   }
+   
+   /**
+    * unlinks every tombstone (rebuilding the tree if they outnumber the live items)
+    * and empties pendingKeys, so no node stays flagged when it moves to another tree
+    */
+   private void purgeTombstones() { //O(p*log(n)) or O(n)
+	   compact(Integer.MAX_VALUE);
+	   while(this.pendingCount > 0) { // keys of revived nodes, left when there was no tombstone
+		   this.pendingCount--;
+		   clearPending(locate(this.pendingKeys[this.pendingCount]));
+	   }
+   }
+   
+   /**
+    * rebuilds a perfectly balanced tree (valid for both policies) from the live nodes
+    */
+   private void rebuild() { //O(n)
+	   IAVLNode[] live = new IAVLNode[this.size()];
+	   collectLive(this.root, live, 0);
+	   this.root = buildBalanced(live, 0, live.length);
+	   this.root.setParent(null);
+	   this.tombstones = 0;
+	   this.pendingCount = 0;
+   }
+   
+   /**
+    * puts the live nodes under node in arr in order, releasing the tombstones
+    */
+   private int collectLive(IAVLNode node, IAVLNode[] arr, int index) { //O(n)
+	   if(node.getKey() == -1) {
+		   return index;
+	   }
+	   index = collectLive(node.getLeft(), arr, index);
+	   IAVLNode right = node.getRight();
+	   if(!isTombstone(node)) {
+		   clearPending(node);
+		   arr[index] = node;
+		   index++;
+	   }
+	   else {
+		   releaseNode(node);
+	   }
+	   return collectLive(right, arr, index);
+   }
+   
+   private IAVLNode buildBalanced(IAVLNode[] nodes, int from, int to) { //O(to - from)
+	   if(from >= to) {
+		   return VIRTUAL;
+	   }
+	   int mid = (from + to) >>> 1;
+	   IAVLNode node = nodes[mid];
+	   IAVLNode left = buildBalanced(nodes, from, mid);
+	   IAVLNode right = buildBalanced(nodes, mid + 1, to);
+	   node.setLeft(left);
+	   node.setRight(right);
+	   left.setParent(node);
+	   right.setParent(node);
+	   updateHeight(node);
+	   node.setSize(left.getSize() + right.getSize() + 1);
+	   return node;
    }
    
    public void updateSize(IAVLNode node, int add) {  //O(log(n))  
@@ -594,7 +1443,10 @@ public AVLTree(IAVLNode node) { //O(log(n))
 			   			cnt = cnt + 5;
 			   		}
 			   		else if(leftChild.getHeight() - leftChild.getLeft().getHeight() == 1 && leftChild.getHeight() - leftChild.getRight().getHeight() == 1) { //will happen only after join
-			   			rotateRight(insertUnder,leftChild);
+			   			rotateRight(insertUnder, leftChild);
+			   			updateHeight(insertUnder);
+			   			updateHeight(leftChild); // leftChild was promoted, go on from its parent
+			   			insertUnder = leftChild.getParent();
 			   			cnt = cnt + 1;
 			   		}
 			   	}
@@ -623,6 +1475,9 @@ public AVLTree(IAVLNode node) { //O(log(n))
 			   		}
 			   		else if(rightChild.getHeight() - rightChild.getLeft().getHeight() == 1 && rightChild.getHeight() - rightChild.getRight().getHeight() == 1) { //will happen only after join
 			   			rotateLeft(insertUnder, rightChild);
+			   			updateHeight(insertUnder);
+			   			updateHeight(rightChild); // rightChild was promoted, go on from its parent
+			   			insertUnder = rightChild.getParent();
 			   			cnt = cnt + 1;
 			   		}
 			   	}
@@ -643,8 +1498,10 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	   }
 	   
 	   index = inOrderKeys(node.getLeft(), arr , index);
-	   arr[index] = node.getKey();
-	   index++;
+	   if(!isTombstone(node)) {
+		   arr[index] = node.getKey();
+		   index++;
+	   }
 	   index = inOrderKeys(node.getRight(), arr, index);
 	   
 	   return index;
@@ -658,8 +1515,10 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	   }
 	   
 	   index = inOrderInfo(node.getLeft(), arr , index);
-	   arr[index] = node.getValue();
-	   index++;
+	   if(!isTombstone(node)) {
+		   arr[index] = node.getValue();
+		   index++;
+	   }
 	   index = inOrderInfo(node.getRight(), arr, index);
 	   
 	   return index;
@@ -702,18 +1561,18 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	   }
    }
    
-   public void updateMinMaxDelete(IAVLNode toDelete) { //O(log(n))
-	  if(this.root.getSize() == 1) { //one node left in tree
-		   this.min = this.root;
-		   this.max = this.root;
-		   
-	   }
-	   if(toDelete.getKey() == this.min.getKey()) { // toDelete is the min node
+   public void updateMinMaxDelete(IAVLNode toDelete) { //O(log(n)), plus the tombstones skipped
+	   if(this.min != null && toDelete.getKey() == this.min.getKey()) { // toDelete is the min node
 		   this.min = successor(toDelete);
-		   
+		   while(this.min != null && isTombstone(this.min)) {
+			   this.min = successor(this.min);
+		   }
 	   }
-	   if(toDelete.getKey() == this.max.getKey()) { //toDelete is the max node
+	   if(this.max != null && toDelete.getKey() == this.max.getKey()) { //toDelete is the max node
 		   this.max = predecessor(toDelete);
+		   while(this.max != null && isTombstone(this.max)) {
+			   this.max = predecessor(this.max);
+		   }
 	   }  
    }
    
@@ -820,7 +1679,7 @@ public AVLTree(IAVLNode node) { //O(log(n))
 			   
 		   }
 		   successor.setHeight(toDelete.getHeight());
-		   successor.setSize(toDelete.getSize() - 1);
+		   successor.setSize(toDelete.getSize()); // delete() takes the deleted node off the sizes
 		   return successor;
 	   } //else-if closer 
    }
@@ -829,7 +1688,7 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	   int cnt = 0;
 	   while (curr != null ) {
 		   if((curr.getHeight() - curr.getLeft().getHeight() == 2 && curr.getHeight() - curr.getRight().getHeight() == 1 ) || (curr.getHeight() - curr.getLeft().getHeight() == 1 && curr.getHeight() - curr.getRight().getHeight() == 2 )) {
-			   return 0; //deleted a leaf and all is good
+			   return cnt; //deleted a leaf and all is good
 		   }
 		   if(curr.getHeight() - curr.getLeft().getHeight() == 2 && curr.getHeight() - curr.getRight().getHeight() == 2 ) {
 			   updateHeight(curr);
@@ -893,6 +1752,99 @@ public AVLTree(IAVLNode node) { //O(log(n))
    }
    
 
+   /**
+    * rebalances after a delete by the WAVL rule, going up from curr
+    * demotion/promotion by one rank, or rotation - counted as one rebalance operation.
+    * @pre curr is the lowest node whose children changed (null if there is none)
+    */
+   public int rebalanceDeleteWAVL(IAVLNode curr) { //O(log(n)), O(1) amortized
+	   int cnt = 0;
+	   while(curr != null) {
+		   int leftDiff = curr.getHeight() - curr.getLeft().getHeight();
+		   int rightDiff = curr.getHeight() - curr.getRight().getHeight();
+		   if(leftDiff == 2 && rightDiff == 2 && curr.getLeft().getKey() == -1 && curr.getRight().getKey() == -1) { // 2,2 leaf
+			   curr.setHeight(0);
+			   cnt++;
+			   curr = curr.getParent();
+		   }
+		   else if(leftDiff == 3) {
+			   IAVLNode rightChild = curr.getRight();
+			   if(rightDiff == 2) {
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt++;
+				   curr = curr.getParent();
+			   }
+			   else if(rightChild.getHeight() - rightChild.getLeft().getHeight() == 2 && rightChild.getHeight() - rightChild.getRight().getHeight() == 2) {
+				   rightChild.setHeight(rightChild.getHeight() - 1);
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt = cnt + 2;
+				   curr = curr.getParent();
+			   }
+			   else if(rightChild.getHeight() - rightChild.getRight().getHeight() == 1) {
+				   rotateLeft(curr, rightChild);
+				   rightChild.setHeight(rightChild.getHeight() + 1);
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt = cnt + 3;
+				   if(curr.getLeft().getKey() == -1 && curr.getRight().getKey() == -1) { // curr became a 2,2 leaf
+					   curr.setHeight(0);
+					   cnt++;
+				   }
+				   return cnt;
+			   }
+			   else {
+				   IAVLNode inner = rightChild.getLeft();
+				   rotateRight(rightChild, inner);
+				   rotateLeft(curr, inner);
+				   inner.setHeight(inner.getHeight() + 2);
+				   rightChild.setHeight(rightChild.getHeight() - 1);
+				   curr.setHeight(curr.getHeight() - 2);
+				   cnt = cnt + 7;
+				   return cnt;
+			   }
+		   }
+		   else if(rightDiff == 3) {
+			   IAVLNode leftChild = curr.getLeft();
+			   if(leftDiff == 2) {
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt++;
+				   curr = curr.getParent();
+			   }
+			   else if(leftChild.getHeight() - leftChild.getLeft().getHeight() == 2 && leftChild.getHeight() - leftChild.getRight().getHeight() == 2) {
+				   leftChild.setHeight(leftChild.getHeight() - 1);
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt = cnt + 2;
+				   curr = curr.getParent();
+			   }
+			   else if(leftChild.getHeight() - leftChild.getLeft().getHeight() == 1) {
+				   rotateRight(curr, leftChild);
+				   leftChild.setHeight(leftChild.getHeight() + 1);
+				   curr.setHeight(curr.getHeight() - 1);
+				   cnt = cnt + 3;
+				   if(curr.getLeft().getKey() == -1 && curr.getRight().getKey() == -1) { // curr became a 2,2 leaf
+					   curr.setHeight(0);
+					   cnt++;
+				   }
+				   return cnt;
+			   }
+			   else {
+				   IAVLNode inner = leftChild.getRight();
+				   rotateLeft(leftChild, inner);
+				   rotateRight(curr, inner);
+				   inner.setHeight(inner.getHeight() + 2);
+				   leftChild.setHeight(leftChild.getHeight() - 1);
+				   curr.setHeight(curr.getHeight() - 2);
+				   cnt = cnt + 7;
+				   return cnt;
+			   }
+		   }
+		   else { // every rank difference is 1 or 2 and curr is not a 2,2 leaf
+			   return cnt;
+		   }
+	   }
+	   return cnt;
+   }
+   
+
 	/**
 	   * public interface IAVLNode
 	   * ! Do not delete or modify this - otherwise all tests will fail !
@@ -923,14 +1875,20 @@ public AVLTree(IAVLNode node) { //O(log(n))
    * This class can and must be modified.
    * (It must implement IAVLNode)
    */
-  public class AVLNode implements IAVLNode{
-	  private int size;
-	  private int height;
+  public static class AVLNode implements IAVLNode{
+	  private static final int HEIGHT_MASK = 0x3F; //height + 1, ranks stay below 63 for any int size
+	  private static final int TOMBSTONE = 0x40; //deleted in lazy mode
+	  private static final int PENDING = 0x80; //key listed in pendingKeys
 	  private int key;
-	  private String info;
+	  private int size;
+	  private Object info; //the info String, or the ValueArena holding it under handle()
 	  private IAVLNode parent;
 	  private IAVLNode left;
 	  private IAVLNode right;
+	  // the rest fills what would be padding, so a node is 40 bytes with or without an arena
+	  private byte bits; //HEIGHT_MASK and the flags
+	  private short handleLow;
+	  private byte handleHigh;
  
 	  	public AVLNode(int key,String info) {
 	  		this.key = key;
@@ -939,23 +1897,52 @@ public AVLTree(IAVLNode node) { //O(log(n))
 	  		if(this.key != -1) {
 	  			this.left = VIRTUAL;
 	  			this.right = VIRTUAL;
-	  			this.height = 0;
+	  			this.bits = 1;
 	  			this.size = 1;
 	  		}
 	  		else {
 	  			this.left = null;
 	  			this.right = null;
-	  			this.height = -1;
+	  			this.bits = 0;
 	  			this.size = 0;
 	  		}
 	  	}
 
+	  	// clears the links and the info so a pooled node holds on to nothing
+	  	private void reset(int key) {
+	  		this.key = key;
+	  		this.info = null;
+	  		this.parent = null;
+	  		this.left = VIRTUAL;
+	  		this.right = VIRTUAL;
+	  		this.bits = 1;
+	  		this.size = 1;
+	  	}
+
+	  	// stores info as a String, or as a handle of arena when arena is not null
+	  	private void setInfo(String info, ValueArena arena) {
+	  		if(arena == null || info == null) {
+	  			this.info = info;
+	  			return;
+	  		}
+	  		int handle = arena.intern(info);
+	  		this.info = arena;
+	  		this.handleLow = (short) handle;
+	  		this.handleHigh = (byte) (handle >>> 16);
+	  	}
+
+	  	private int handle() {
+	  		return (this.handleLow & 0xFFFF) | (this.handleHigh & 0xFF) << 16;
+	  	}
+
 	  	public int getSize() {
 	  		return this.size;
 	  	}
 	  	
 	  	public void setSize(int size) {
-	  		this.size = size;	
+	  		if(this != VIRTUAL) {
+	  			this.size = size;
+	  		}
 	  	}
 	  
 		public int getKey() 
@@ -964,11 +1951,16 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		}
 		public String getValue()
 		{
-			return this.info; 
+			if(this.info instanceof ValueArena) {
+				return ((ValueArena) this.info).decode(handle());
+			}
+			return (String) this.info; 
 		}
 		public void setLeft(IAVLNode node)
 		{
-			this.left = node;
+			if(this != VIRTUAL) {
+				this.left = node;
+			}
 		}
 		public IAVLNode getLeft()
 		{
@@ -976,7 +1968,9 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		}
 		public void setRight(IAVLNode node)
 		{
-			this.right = node;
+			if(this != VIRTUAL) {
+				this.right = node;
+			}
 		}
 		public IAVLNode getRight()
 		{
@@ -984,7 +1978,9 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		}
 		public void setParent(IAVLNode node)
 		{
-			this.parent = node;
+			if(this != VIRTUAL) {
+				this.parent = node;
+			}
 		}
 		public IAVLNode getParent()
 		{
@@ -999,13 +1995,3443 @@ public AVLTree(IAVLNode node) { //O(log(n))
 		}
 	    public void setHeight(int height)
 	    {
-	    	this.height = height;
+	    	if(this != VIRTUAL) {
+	    		this.bits = (byte) ((this.bits & ~HEIGHT_MASK) | (height + 1));
+	    	}
 	    }
 	    public int getHeight()
 	    {
-	      return this.height; 
+	      return (this.bits & HEIGHT_MASK) - 1; 
 	    }
 	  }
 
+  /**
+   * public class FrozenAVLTree
+   *
+   * Read-only snapshot of an AVLTree. The keys are kept in one int[] in
+   * BFS (Eytzinger) order: the children of slot i are slots 2i and 2i+1,
+   * so a search walks down one array and picks the next slot by arithmetic,
+   * with no pointer chasing and no unpredictable branch.
+   * Slot 0 is unused, the infos and in-order ranks are parallel arrays.
+   */
+  public static class FrozenAVLTree {
+	  private static final int BATCH = 8; //probes walked down together by searchBatch
+	  private final int n;
+	  private final int[] keys;
+	  private final String[] infos;
+	  private final int[] ranks; //in-order position of the key in each slot
+
+	  /**
+	   * @pre sortedKeys is sorted and has distinct keys, infos[i] is the info of sortedKeys[i]
+	   */
+	  public FrozenAVLTree(int[] sortedKeys, String[] infos) { //O(n)
+		  this.n = sortedKeys.length;
+		  this.keys = new int[n + 1];
+		  this.infos = new String[n + 1];
+		  this.ranks = new int[n + 1];
+		  fill(sortedKeys, infos, 0, 1);
+	  }
+
+	  // places the sorted items from index i on into the subtree of slot, returns the next unused index
+	  private int fill(int[] sortedKeys, String[] sortedInfos, int i, int slot) { //O(n)
+		  if(slot > n) {
+			  return i;
+		  }
+		  i = fill(sortedKeys, sortedInfos, i, 2 * slot);
+		  this.keys[slot] = sortedKeys[i];
+		  this.infos[slot] = sortedInfos[i];
+		  this.ranks[slot] = i;
+		  i++;
+		  return fill(sortedKeys, sortedInfos, i, 2 * slot + 1);
+	  }
+
+	  /**
+	   * public boolean empty()
+	   *
+	   * returns true if and only if the snapshot is empty
+	   */
+	  public boolean empty() { //O(1)
+		  return n == 0;
+	  }
+
+	  /**
+	   * public int size()
+	   *
+	   * Returns the number of items in the snapshot.
+	   */
+	  public int size() { //O(1)
+		  return n;
+	  }
+
+	  /**
+	   * public String search(int k)
+	   *
+	   * returns the info of the item with key k if it exists in the snapshot
+	   * otherwise, returns null
+	   */
+	  public String search(int k) { //O(log(n))
+		  int slot = ceilingSlot(k);
+		  if(slot != 0 && keys[slot] == k) {
+			  return infos[slot];
+		  }
+		  return null;
+	  }
+
+	  /**
+	   * public int ceilingKey(int k)
+	   *
+	   * returns the smallest key >= k, or -1 if there is none
+	   */
+	  public int ceilingKey(int k) { //O(log(n))
+		  int slot = ceilingSlot(k);
+		  return slot == 0 ? -1 : keys[slot];
+	  }
+
+	  /**
+	   * public int floorKey(int k)
+	   *
+	   * returns the largest key <= k, or -1 if there is none
+	   */
+	  public int floorKey(int k) { //O(log(n))
+		  int slot = 1;
+		  int floor = 0;
+		  while(slot <= n) {
+			  boolean right = keys[slot] <= k;
+			  floor = right ? slot : floor;
+			  slot = 2 * slot + (right ? 1 : 0);
+		  }
+		  return floor == 0 ? -1 : keys[floor];
+	  }
+
+	  /**
+	   * public int rank(int k)
+	   *
+	   * returns the number of keys smaller than k
+	   */
+	  public int rank(int k) { //O(log(n))
+		  int slot = ceilingSlot(k);
+		  return slot == 0 ? n : ranks[slot];
+	  }
+
+	  /**
+	   * public void searchBatch(int[] probes, String[] out)
+	   *
+	   * sets out[j] = search(probes[j]) for every j.
+	   * Probes are walked down in groups, one level of every probe at a time,
+	   * so the memory loads of a group are independent and overlap.
+	   * precondition: out.length >= probes.length
+	   */
+	  public void searchBatch(int[] probes, String[] out) { //O(m*log(n))
+		  int levels = 32 - Integer.numberOfLeadingZeros(n); //longest root to leaf path
+		  int[] slots = new int[BATCH];
+		  for(int from = 0; from < probes.length; from += BATCH) {
+			  int cnt = Math.min(BATCH, probes.length - from);
+			  for(int j = 0; j < cnt; j++) {
+				  slots[j] = 1;
+			  }
+			  for(int level = 0; level < levels; level++) {
+				  for(int j = 0; j < cnt; j++) {
+					  int slot = slots[j];
+					  if(slot <= n) {
+						  slots[j] = 2 * slot + (keys[slot] < probes[from + j] ? 1 : 0);
+					  }
+				  }
+			  }
+			  for(int j = 0; j < cnt; j++) {
+				  int slot = slots[j] >>> (Integer.numberOfTrailingZeros(~slots[j]) + 1);
+				  out[from + j] = (slot != 0 && keys[slot] == probes[from + j]) ? infos[slot] : null;
+			  }
+		  }
+	  }
+
+	  /**
+	   * @return the slot of the smallest key >= k, or 0 if there is none
+	   */
+	  private int ceilingSlot(int k) { //O(log(n))
+		  int slot = 1;
+		  while(slot <= n) {
+			  slot = 2 * slot + (keys[slot] < k ? 1 : 0);
+		  }
+		  // the walk went right after the last slot that is >= k, undo the trailing right turns and that left turn
+		  return slot >>> (Integer.numberOfTrailingZeros(~slot) + 1);
+	  }
+  }
+
+  /**
+   * public class PersistentAVLTree
+   *
+   * Immutable AVL tree: insert and delete return a new tree and leave this one as it was.
+   * Only the nodes on the path of the change are copied (O(log(n)) of them); the new tree
+   * shares every other node with the old one, so old and new versions can be read at the
+   * same time without locks.
+   */
+  public static class PersistentAVLTree {
+	  private static final PersistentAVLTree EMPTY = new PersistentAVLTree(null);
+	  private final Node root; //null for an empty tree
+
+	  private PersistentAVLTree(Node root) {
+		  this.root = root;
+	  }
+
+	  /**
+	   * public static PersistentAVLTree emptyTree()
+	   *
+	   * returns the empty tree
+	   */
+	  public static PersistentAVLTree emptyTree() { //O(1)
+		  return EMPTY;
+	  }
+
+	  /**
+	   * public static PersistentAVLTree of(int[] sortedKeys, String[] infos)
+	   *
+	   * builds a balanced tree of the items.
+	   * precondition: sortedKeys is sorted and has distinct keys, infos[i] is the info of sortedKeys[i]
+	   */
+	  public static PersistentAVLTree of(int[] sortedKeys, String[] infos) { //O(n)
+		  return new PersistentAVLTree(build(sortedKeys, infos, 0, sortedKeys.length));
+	  }
+
+	  /**
+	   * public boolean empty()
+	   *
+	   * returns true if and only if the tree is empty
+	   */
+	  public boolean empty() { //O(1)
+		  return this.root == null;
+	  }
+
+	  /**
+	   * public int size()
+	   *
+	   * Returns the number of items in the tree.
+	   */
+	  public int size() { //O(1)
+		  return size(this.root);
+	  }
+
+	  /**
+	   * public String search(int k)
+	   *
+	   * returns the info of the item with key k if it exists in the tree
+	   * otherwise, returns null
+	   */
+	  public String search(int k) { //O(log(n))
+		  Node node = this.root;
+		  while(node != null) {
+			  if(k < node.key) {
+				  node = node.left;
+			  }
+			  else if(k > node.key) {
+				  node = node.right;
+			  }
+			  else {
+				  return node.info;
+			  }
+		  }
+		  return null;
+	  }
+
+	  /**
+	   * public int ceilingKey(int k)
+	   *
+	   * returns the smallest key >= k, or -1 if there is none
+	   */
+	  public int ceilingKey(int k) { //O(log(n))
+		  Node node = this.root;
+		  int ceiling = -1;
+		  while(node != null) {
+			  if(node.key >= k) {
+				  ceiling = node.key;
+				  node = node.left;
+			  }
+			  else {
+				  node = node.right;
+			  }
+		  }
+		  return ceiling;
+	  }
+
+	  /**
+	   * public int floorKey(int k)
+	   *
+	   * returns the largest key <= k, or -1 if there is none
+	   */
+	  public int floorKey(int k) { //O(log(n))
+		  Node node = this.root;
+		  int floor = -1;
+		  while(node != null) {
+			  if(node.key <= k) {
+				  floor = node.key;
+				  node = node.right;
+			  }
+			  else {
+				  node = node.left;
+			  }
+		  }
+		  return floor;
+	  }
+
+	  /**
+	   * public int rank(int k)
+	   *
+	   * returns the number of keys smaller than k
+	   */
+	  public int rank(int k) { //O(log(n))
+		  Node node = this.root;
+		  int rank = 0;
+		  while(node != null) {
+			  if(node.key < k) {
+				  rank += size(node.left) + 1;
+				  node = node.right;
+			  }
+			  else {
+				  node = node.left;
+			  }
+		  }
+		  return rank;
+	  }
+
+	  /**
+	   * public PersistentAVLTree insert(int k, String i)
+	   *
+	   * returns a tree with the items of this one and (k, i); if k is already there, its info becomes i.
+	   */
+	  public PersistentAVLTree insert(int k, String i) { //O(log(n))
+		  return new PersistentAVLTree(insert(this.root, k, i));
+	  }
+
+	  /**
+	   * public PersistentAVLTree delete(int k)
+	   *
+	   * returns a tree with the items of this one except key k (this tree if k is not in it).
+	   */
+	  public PersistentAVLTree delete(int k) { //O(log(n))
+		  Node root = delete(this.root, k);
+		  return root == this.root ? this : new PersistentAVLTree(root);
+	  }
+
+	  /**
+	   * public FrozenAVLTree freeze()
+	   *
+	   * Returns the items in the Eytzinger layout of FrozenAVLTree, for read-heavy use.
+	   */
+	  public FrozenAVLTree freeze() { //O(n)
+		  int[] keys = new int[size()];
+		  String[] infos = new String[size()];
+		  inOrder(this.root, keys, infos, 0);
+		  return new FrozenAVLTree(keys, infos);
+	  }
+
+	  private static Node build(int[] keys, String[] infos, int from, int to) { //O(to - from)
+		  if(from >= to) {
+			  return null;
+		  }
+		  int mid = (from + to) >>> 1;
+		  return new Node(keys[mid], infos[mid], build(keys, infos, from, mid), build(keys, infos, mid + 1, to));
+	  }
+
+	  private static Node insert(Node node, int k, String info) { //O(log(n))
+		  if(node == null) {
+			  return new Node(k, info, null, null);
+		  }
+		  if(k < node.key) {
+			  return balance(node.key, node.info, insert(node.left, k, info), node.right);
+		  }
+		  if(k > node.key) {
+			  return balance(node.key, node.info, node.left, insert(node.right, k, info));
+		  }
+		  return new Node(k, info, node.left, node.right);
+	  }
+
+	  // returns node itself when k is not under it, so nothing is copied
+	  private static Node delete(Node node, int k) { //O(log(n))
+		  if(node == null) {
+			  return null;
+		  }
+		  if(k < node.key) {
+			  Node left = delete(node.left, k);
+			  return left == node.left ? node : balance(node.key, node.info, left, node.right);
+		  }
+		  if(k > node.key) {
+			  Node right = delete(node.right, k);
+			  return right == node.right ? node : balance(node.key, node.info, node.left, right);
+		  }
+		  if(node.left == null) {
+			  return node.right;
+		  }
+		  if(node.right == null) {
+			  return node.left;
+		  }
+		  Node successor = node.right;
+		  while(successor.left != null) {
+			  successor = successor.left;
+		  }
+		  return balance(successor.key, successor.info, node.left, delete(node.right, successor.key));
+	  }
+
+	  /**
+	   * @pre left and right are AVL trees whose heights differ by at most 2
+	   * @return a new AVL node over key, info, left and right, rotated if needed
+	   */
+	  private static Node balance(int key, String info, Node left, Node right) { //O(1)
+		  int hl = height(left);
+		  int hr = height(right);
+		  if(hl > hr + 1) {
+			  if(height(left.left) >= height(left.right)) { //single rotation
+				  return new Node(left.key, left.info, left.left, new Node(key, info, left.right, right));
+			  }
+			  Node mid = left.right; //double rotation
+			  return new Node(mid.key, mid.info, new Node(left.key, left.info, left.left, mid.left), new Node(key, info, mid.right, right));
+		  }
+		  if(hr > hl + 1) {
+			  if(height(right.right) >= height(right.left)) {
+				  return new Node(right.key, right.info, new Node(key, info, left, right.left), right.right);
+			  }
+			  Node mid = right.left;
+			  return new Node(mid.key, mid.info, new Node(key, info, left, mid.left), new Node(right.key, right.info, mid.right, right.right));
+		  }
+		  return new Node(key, info, left, right);
+	  }
+
+	  private static int inOrder(Node node, int[] keys, String[] infos, int index) { //O(n)
+		  if(node == null) {
+			  return index;
+		  }
+		  index = inOrder(node.left, keys, infos, index);
+		  keys[index] = node.key;
+		  infos[index] = node.info;
+		  return inOrder(node.right, keys, infos, index + 1);
+	  }
+
+	  private static int height(Node node) { //O(1)
+		  return node == null ? -1 : node.height;
+	  }
+
+	  private static int size(Node node) { //O(1)
+		  return node == null ? 0 : node.size;
+	  }
+
+	  private static final class Node {
+		  private final int key;
+		  private final String info;
+		  private final Node left;
+		  private final Node right;
+		  private final byte height;
+		  private final int size;
+
+		  private Node(int key, String info, Node left, Node right) {
+			  this.key = key;
+			  this.info = info;
+			  this.left = left;
+			  this.right = right;
+			  this.height = (byte) (Math.max(height(left), height(right)) + 1);
+			  this.size = size(left) + size(right) + 1;
+		  }
+	  }
+  }
+
+  /**
+   * public class WritePipeline
+   *
+   * Funnels inserts and deletes from many threads into one writer thread that owns the tree.
+   * Producers put mutations in a bounded lock-free ring buffer; the writer takes them
+   * in batches, applies each batch in key order and then publishes a PersistentAVLTree
+   * of the result, which readers use without locks.
+   * The writer keeps that view next to the tree and applies every change to both; the view
+   * copies only the O(log(n)) nodes on the path of a change, so publishing after a batch
+   * costs O(batch*log(n)) however big the tree is (the view holds a second copy of the items).
+   * The future of a mutation completes with the value insert/delete returned,
+   * once a snapshot containing it is published.
+   * After the tree is handed to a pipeline only the writer thread may touch it.
+   */
+  public static class WritePipeline implements AutoCloseable {
+	  private static final long IDLE_NANOS = 100_000; //writer sleep when the ring is empty
+	  private final AVLTree tree;
+	  private final int mask;
+	  private final AtomicReferenceArray<Mutation> ring;
+	  private final AtomicLongArray sequence; //slot i is free for ticket t when sequence[i] == t, full when t + 1
+	  private final AtomicLong tail = new AtomicLong(); //next ticket for producers
+	  private long head; //next ticket for the writer, used by the writer thread only
+	  private final Mutation[] batch;
+	  private final Thread writer;
+	  private volatile PersistentAVLTree view;
+	  private volatile boolean closed;
+	  private volatile boolean sleeping;
+
+	  /**
+	   * starts the writer thread over tree.
+	   * capacity is rounded up to a power of 2, and to at least 2 (with one slot, a full slot would
+	   * look free for the next ticket); batchSize is the most mutations applied before a snapshot.
+	   * precondition: capacity > 0, batchSize > 0
+	   */
+	  public WritePipeline(AVLTree tree, int capacity, int batchSize) {
+		  if(capacity <= 0 || batchSize <= 0) {
+			  throw new IllegalArgumentException("capacity and batchSize must be positive");
+		  }
+		  int size = Math.max(2, Integer.highestOneBit(capacity));
+		  if(size < capacity) {
+			  size = size << 1;
+		  }
+		  this.tree = tree;
+		  this.mask = size - 1;
+		  this.ring = new AtomicReferenceArray<Mutation>(size);
+		  this.sequence = new AtomicLongArray(size);
+		  for(int i = 0; i < size; i++) {
+			  this.sequence.set(i, i);
+		  }
+		  this.batch = new Mutation[batchSize];
+		  this.view = PersistentAVLTree.of(tree.keysToArray(), tree.infoToArray());
+		  this.writer = new Thread(this::runWriter, "avl-writer");
+		  this.writer.setDaemon(true);
+		  this.writer.start();
+	  }
+
+	  /**
+	   * public PersistentAVLTree snapshot()
+	   *
+	   * Returns the latest published snapshot of the tree. It holds every mutation whose
+	   * future has completed; freeze() it for the faster FrozenAVLTree layout.
+	   */
+	  public PersistentAVLTree snapshot() { //O(1)
+		  return this.view;
+	  }
+
+	  /**
+	   * public CompletableFuture<Integer> insert(int k, String i)
+	   *
+	   * queues insert(k, i), waiting while the ring buffer is full.
+	   */
+	  public CompletableFuture<Integer> insert(int k, String i) {
+		  return put(new Mutation(true, k, i));
+	  }
+
+	  /**
+	   * public CompletableFuture<Integer> delete(int k)
+	   *
+	   * queues delete(k), waiting while the ring buffer is full.
+	   */
+	  public CompletableFuture<Integer> delete(int k) {
+		  return put(new Mutation(false, k, null));
+	  }
+
+	  /**
+	   * public CompletableFuture<Integer> tryInsert(int k, String i)
+	   *
+	   * queues insert(k, i), or returns null at once if the ring buffer is full.
+	   */
+	  public CompletableFuture<Integer> tryInsert(int k, String i) {
+		  return offer(new Mutation(true, k, i));
+	  }
+
+	  /**
+	   * public CompletableFuture<Integer> tryDelete(int k)
+	   *
+	   * queues delete(k), or returns null at once if the ring buffer is full.
+	   */
+	  public CompletableFuture<Integer> tryDelete(int k) {
+		  return offer(new Mutation(false, k, null));
+	  }
+
+	  /**
+	   * public void close()
+	   *
+	   * applies and publishes what is already queued, then stops the writer thread.
+	   * Producers must stop before close() is called.
+	   */
+	  public void close() {
+		  this.closed = true;
+		  LockSupport.unpark(this.writer);
+		  try {
+			  this.writer.join();
+		  }
+		  catch(InterruptedException e) {
+			  Thread.currentThread().interrupt();
+		  }
+	  }
+
+	  private CompletableFuture<Integer> put(Mutation m) {
+		  int spins = 0;
+		  while(offer(m) == null) {
+			  if(spins < 100) { // the writer usually frees slots soon, spin a little before sleeping
+				  spins++;
+				  Thread.onSpinWait();
+			  }
+			  else {
+				  LockSupport.parkNanos(IDLE_NANOS);
+			  }
+		  }
+		  return m.done;
+	  }
+
+	  private CompletableFuture<Integer> offer(Mutation m) {
+		  if(this.closed) {
+			  throw new IllegalStateException("pipeline is closed");
+		  }
+		  long ticket = this.tail.get();
+		  while(true) {
+			  int slot = (int) (ticket & this.mask);
+			  long diff = this.sequence.get(slot) - ticket;
+			  if(diff == 0) {
+				  if(this.tail.compareAndSet(ticket, ticket + 1)) {
+					  this.ring.set(slot, m);
+					  this.sequence.set(slot, ticket + 1);
+					  if(this.sleeping) {
+						  LockSupport.unpark(this.writer);
+					  }
+					  return m.done;
+				  }
+				  ticket = this.tail.get();
+			  }
+			  else if(diff < 0) { // the writer has not freed this slot yet: full
+				  return null;
+			  }
+			  else { // another producer took the ticket
+				  ticket = this.tail.get();
+			  }
+		  }
+	  }
+
+	  private Mutation poll() {
+		  int slot = (int) (this.head & this.mask);
+		  if(this.sequence.get(slot) != this.head + 1) {
+			  return null;
+		  }
+		  Mutation m = this.ring.get(slot);
+		  this.ring.set(slot, null);
+		  this.sequence.set(slot, this.head + this.mask + 1);
+		  this.head++;
+		  return m;
+	  }
+
+	  private void runWriter() {
+		  while(true) {
+			  int cnt = 0;
+			  Mutation m;
+			  while(cnt < this.batch.length && (m = poll()) != null) {
+				  this.batch[cnt] = m;
+				  cnt++;
+			  }
+			  if(cnt > 0) {
+				  applyBatch(cnt);
+			  }
+			  else if(this.closed) {
+				  return;
+			  }
+			  else {
+				  this.sleeping = true;
+				  if(this.sequence.get((int) (this.head & this.mask)) != this.head + 1) { // check again after raising the flag
+					  LockSupport.parkNanos(IDLE_NANOS);
+				  }
+				  this.sleeping = false;
+			  }
+		  }
+	  }
+
+	  private void applyBatch(int cnt) {
+		  // sorting makes neighbouring mutations walk the same paths; the sort is stable,
+		  // so mutations of the same key keep their order
+		  Arrays.sort(this.batch, 0, cnt, (a, b) -> Integer.compare(a.key, b.key));
+		  int[] results = new int[cnt];
+		  RuntimeException[] errors = new RuntimeException[cnt];
+		  PersistentAVLTree next = this.view;
+		  for(int j = 0; j < cnt; j++) {
+			  Mutation m = this.batch[j];
+			  try {
+				  results[j] = m.insert ? this.tree.insert(m.key, m.info) : this.tree.delete(m.key);
+				  if(results[j] != -1) { // the tree changed, follow it
+					  next = m.insert ? next.insert(m.key, m.info) : next.delete(m.key);
+				  }
+			  }
+			  catch(RuntimeException e) {
+				  errors[j] = e;
+			  }
+		  }
+		  this.view = next;
+		  for(int j = 0; j < cnt; j++) {
+			  Mutation m = this.batch[j];
+			  this.batch[j] = null;
+			  if(errors[j] != null) {
+				  m.done.completeExceptionally(errors[j]);
+			  }
+			  else {
+				  m.done.complete(results[j]);
+			  }
+		  }
+	  }
+
+	  private static final class Mutation {
+		  private final boolean insert;
+		  private final int key;
+		  private final String info;
+		  private final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+
+		  private Mutation(boolean insert, int key, String info) {
+			  this.insert = insert;
+			  this.key = key;
+			  this.info = info;
+		  }
+	  }
+  }
+
+  /**
+   * public class LoadGenerator
+   *
+   * Command line load tool: drives a tree from many concurrent clients with a synthetic
+   * YCSB-style operation mix or a recorded trace, and prints latency percentiles per
+   * operation and throughput per second. The operations each client runs depend only
+   * on the seed (the interleaving of clients is up to the scheduler).
+   *
+   * java AVLTree$LoadGenerator [--target avl|wavl|pipeline] [--clients 1000] [--ops 10000]
+   *     [--keys 1000000] [--dist uniform|zipfian|sequential] [--seed 42]
+   *     [--mix search=50,insert=20,delete=20,range=9,split_join=1] [--range 100] [--trace file]
+   *
+   * Trace lines are "op key", with op one of search, insert, delete, range, split_join;
+   * line j is run by client j % clients.
+   * split_join splits the tree at the key and joins the two halves back.
+   * Clients run on virtual threads when the JDK has them, else on one platform thread each.
+   */
+  public static class LoadGenerator {
+	  private static final String[] OPS = {"search", "insert", "delete", "range", "split_join"};
+	  private static final int SEARCH = 0, INSERT = 1, DELETE = 2, RANGE = 3, SPLIT_JOIN = 4;
+
+	  public static void main(String[] args) throws Exception {
+		  Map<String, String> opt = new HashMap<String, String>();
+		  for(int j = 0; j + 1 < args.length; j += 2) {
+			  if(!args[j].startsWith("--")) {
+				  throw new IllegalArgumentException("expected --option value, got " + args[j]);
+			  }
+			  opt.put(args[j].substring(2), args[j + 1]);
+		  }
+		  String targetName = opt.getOrDefault("target", "avl");
+		  int clients = Integer.parseInt(opt.getOrDefault("clients", "1000"));
+		  int ops = Integer.parseInt(opt.getOrDefault("ops", "10000"));
+		  int keys = Integer.parseInt(opt.getOrDefault("keys", "1000000"));
+		  int rangeLength = Integer.parseInt(opt.getOrDefault("range", "100"));
+		  long seed = Long.parseLong(opt.getOrDefault("seed", "42"));
+		  String dist = opt.getOrDefault("dist", "uniform");
+		  int[] mix = parseMix(opt.getOrDefault("mix", "search=50,insert=20,delete=20,range=9,split_join=1"));
+
+		  Target target = newTarget(targetName);
+		  for(int k = 0; k < keys; k += 2) { // half of the key space is present at the start
+			  target.insert(k);
+		  }
+		  int[][][] work = opt.containsKey("trace")
+				  ? readTrace(opt.get("trace"), clients)
+				  : generate(clients, ops, keys, dist, mix, seed);
+
+		  Client[] all = new Client[clients];
+		  for(int c = 0; c < clients; c++) {
+			  all[c] = new Client(target, work[c][0], work[c][1], rangeLength);
+		  }
+		  ExecutorService pool = newClientExecutor();
+		  long start = System.nanoTime();
+		  for(Client c : all) {
+			  c.start = start;
+			  pool.execute(c);
+		  }
+		  pool.shutdown();
+		  pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		  long elapsed = System.nanoTime() - start;
+		  target.close();
+		  report(all, elapsed, System.out);
+	  }
+
+	  private static int[] parseMix(String spec) {
+		  int[] mix = new int[OPS.length];
+		  for(String part : spec.split(",")) {
+			  String[] kv = part.split("=");
+			  mix[opIndex(kv[0].trim())] = Integer.parseInt(kv[1].trim());
+		  }
+		  return mix;
+	  }
+
+	  private static int opIndex(String name) {
+		  for(int j = 0; j < OPS.length; j++) {
+			  if(OPS[j].equals(name)) {
+				  return j;
+			  }
+		  }
+		  throw new IllegalArgumentException("unknown operation " + name);
+	  }
+
+	  /**
+	   * @return for every client, [operation codes, keys]
+	   */
+	  private static int[][][] generate(int clients, int ops, int keys, String dist, int[] mix, long seed) {
+		  int total = 0;
+		  for(int w : mix) {
+			  total += w;
+		  }
+		  KeyChooser chooser = new KeyChooser(dist, keys);
+		  SplittableRandom root = new SplittableRandom(seed);
+		  int[][][] work = new int[clients][2][ops];
+		  for(int c = 0; c < clients; c++) {
+			  SplittableRandom rnd = root.split();
+			  for(int j = 0; j < ops; j++) {
+				  int pick = rnd.nextInt(total);
+				  int op = 0;
+				  while(pick >= mix[op]) {
+					  pick -= mix[op];
+					  op++;
+				  }
+				  work[c][0][j] = op;
+				  work[c][1][j] = chooser.next(rnd, c, j, clients);
+			  }
+		  }
+		  return work;
+	  }
+
+	  private static int[][][] readTrace(String file, int clients) throws IOException {
+		  List<String> lines = Files.readAllLines(Paths.get(file));
+		  lines.removeIf(line -> line.trim().isEmpty() || line.startsWith("#"));
+		  int[][][] work = new int[clients][2][];
+		  for(int c = 0; c < clients; c++) {
+			  int cnt = lines.size() / clients + (c < lines.size() % clients ? 1 : 0);
+			  work[c][0] = new int[cnt];
+			  work[c][1] = new int[cnt];
+		  }
+		  for(int j = 0; j < lines.size(); j++) {
+			  String[] parts = lines.get(j).trim().split("\\s+");
+			  work[j % clients][0][j / clients] = opIndex(parts[0]);
+			  work[j % clients][1][j / clients] = Integer.parseInt(parts[1]);
+		  }
+		  return work;
+	  }
+
+	  private static Target newTarget(String name) {
+		  if(name.equals("avl")) {
+			  return new LockedTarget(new AVLTree(BalancePolicy.AVL));
+		  }
+		  if(name.equals("wavl")) {
+			  return new LockedTarget(new AVLTree(BalancePolicy.WAVL));
+		  }
+		  if(name.equals("pipeline")) {
+			  return new PipelineTarget(new AVLTree());
+		  }
+		  throw new IllegalArgumentException("unknown target " + name);
+	  }
+
+	  // virtual threads are final from JDK 21 on; look them up so the tool still runs on older JDKs
+	  private static ExecutorService newClientExecutor() {
+		  try {
+			  return (ExecutorService) Executors.class
+					  .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		  }
+		  catch(ReflectiveOperationException e) {
+			  return Executors.newCachedThreadPool();
+		  }
+	  }
+
+	  private static void report(Client[] clients, long elapsed, PrintStream out) {
+		  LatencyHistogram[] merged = new LatencyHistogram[OPS.length];
+		  long[] perSecond = new long[0];
+		  long skipped = 0;
+		  for(int op = 0; op < OPS.length; op++) {
+			  merged[op] = new LatencyHistogram();
+		  }
+		  for(Client c : clients) {
+			  for(int op = 0; op < OPS.length; op++) {
+				  merged[op].add(c.latencies[op]);
+			  }
+			  if(c.perSecond.length > perSecond.length) {
+				  perSecond = Arrays.copyOf(perSecond, c.perSecond.length);
+			  }
+			  for(int sec = 0; sec < c.perSecond.length; sec++) {
+				  perSecond[sec] += c.perSecond[sec];
+			  }
+			  skipped += c.skipped;
+		  }
+		  long total = 0;
+		  out.printf("%-11s %10s %10s %10s %10s %10s%n", "op", "count", "p50 us", "p99 us", "p99.9 us", "max us");
+		  for(int op = 0; op < OPS.length; op++) {
+			  LatencyHistogram h = merged[op];
+			  total += h.count();
+			  if(h.count() > 0) {
+				  out.printf("%-11s %10d %10.1f %10.1f %10.1f %10.1f%n", OPS[op], h.count(),
+						  h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3);
+			  }
+		  }
+		  out.printf("total %d ops in %.2f s, %.0f ops/s, %d skipped (not supported by the target)%n",
+				  total, elapsed / 1e9, total / (elapsed / 1e9), skipped);
+		  for(int sec = 0; sec < perSecond.length; sec++) {
+			  out.printf("second %d: %d ops%n", sec, perSecond[sec]);
+		  }
+	  }
+
+	  /**
+	   * tree operations the clients run; every call is safe to make from many threads
+	   */
+	  private interface Target {
+		  void search(int k);
+		  void insert(int k);
+		  void delete(int k);
+		  void range(int lo, int length);
+		  boolean splitJoin(int k); //false if the target does not support it
+		  void close();
+	  }
+
+	  private static final class LockedTarget implements Target {
+		  private final ReentrantLock lock = new ReentrantLock(); //not synchronized: a virtual thread blocked on a monitor pins its carrier
+		  private AVLTree tree;
+
+		  private LockedTarget(AVLTree tree) {
+			  this.tree = tree;
+		  }
+
+		  public void search(int k) {
+			  lock.lock();
+			  try {
+				  tree.search(k);
+			  }
+			  finally {
+				  lock.unlock();
+			  }
+		  }
+
+		  public void insert(int k) {
+			  lock.lock();
+			  try {
+				  tree.insert(k, "v");
+			  }
+			  finally {
+				  lock.unlock();
+			  }
+		  }
+
+		  public void delete(int k) {
+			  lock.lock();
+			  try {
+				  tree.delete(k);
+			  }
+			  finally {
+				  lock.unlock();
+			  }
+		  }
+
+		  public void range(int lo, int length) {
+			  lock.lock();
+			  try {
+				  IAVLNode node = VIRTUAL;
+				  IAVLNode curr = tree.getRoot();
+				  while(curr.getKey() != -1) { // smallest key >= lo
+					  if(curr.getKey() >= lo) {
+						  node = curr;
+						  curr = curr.getLeft();
+					  }
+					  else {
+						  curr = curr.getRight();
+					  }
+				  }
+				  for(int j = 0; j < length && node != null && node.getKey() != -1; j++) {
+					  node = tree.successor(node);
+				  }
+			  }
+			  finally {
+				  lock.unlock();
+			  }
+		  }
+
+		  public boolean splitJoin(int k) {
+			  lock.lock();
+			  try {
+				  IAVLNode x = tree.findNode(k);
+				  if(x.getKey() != -1) {
+					  String info = x.getValue();
+					  AVLTree[] parts = tree.split(k);
+					  parts[0].join(new AVLNode(k, info), parts[1]);
+					  tree = parts[0];
+				  }
+				  return true;
+			  }
+			  finally {
+				  lock.unlock();
+			  }
+		  }
+
+		  public void close() {
+		  }
+	  }
+
+	  private static final class PipelineTarget implements Target {
+		  private final WritePipeline pipeline;
+
+		  private PipelineTarget(AVLTree tree) {
+			  this.pipeline = new WritePipeline(tree, 1 << 16, 4096);
+		  }
+
+		  public void search(int k) {
+			  pipeline.snapshot().search(k);
+		  }
+
+		  public void insert(int k) {
+			  pipeline.insert(k, "v").join();
+		  }
+
+		  public void delete(int k) {
+			  pipeline.delete(k).join();
+		  }
+
+		  public void range(int lo, int length) {
+			  PersistentAVLTree view = pipeline.snapshot();
+			  int k = view.ceilingKey(lo);
+			  for(int j = 0; j < length && k != -1 && k != Integer.MAX_VALUE; j++) {
+				  k = view.ceilingKey(k + 1);
+			  }
+		  }
+
+		  public boolean splitJoin(int k) {
+			  return false;
+		  }
+
+		  public void close() {
+			  pipeline.close();
+		  }
+	  }
+
+	  private static final class Client implements Runnable {
+		  private final Target target;
+		  private final int[] ops;
+		  private final int[] keys;
+		  private final int rangeLength;
+		  private final LatencyHistogram[] latencies = new LatencyHistogram[OPS.length];
+		  private long[] perSecond = new long[0];
+		  private long skipped;
+		  private long start;
+
+		  private Client(Target target, int[] ops, int[] keys, int rangeLength) {
+			  this.target = target;
+			  this.ops = ops;
+			  this.keys = keys;
+			  this.rangeLength = rangeLength;
+			  for(int op = 0; op < OPS.length; op++) {
+				  latencies[op] = new LatencyHistogram();
+			  }
+		  }
+
+		  public void run() {
+			  for(int j = 0; j < ops.length; j++) {
+				  int k = keys[j];
+				  long before = System.nanoTime();
+				  switch(ops[j]) {
+				  case SEARCH:
+					  target.search(k);
+					  break;
+				  case INSERT:
+					  target.insert(k);
+					  break;
+				  case DELETE:
+					  target.delete(k);
+					  break;
+				  case RANGE:
+					  target.range(k, rangeLength);
+					  break;
+				  default:
+					  if(!target.splitJoin(k)) {
+						  skipped++;
+						  continue;
+					  }
+				  }
+				  long after = System.nanoTime();
+				  latencies[ops[j]].record(after - before);
+				  int sec = (int) ((after - start) / 1_000_000_000L);
+				  if(sec >= perSecond.length) {
+					  perSecond = Arrays.copyOf(perSecond, sec + 1);
+				  }
+				  perSecond[sec]++;
+			  }
+		  }
+	  }
+
+	  /**
+	   * picks keys in [0, keys): uniform, zipfian (YCSB, theta 0.99, small keys are hot)
+	   * or sequential (client c takes c, c + clients, c + 2*clients ...)
+	   */
+	  private static final class KeyChooser {
+		  private static final double THETA = 0.99;
+		  private final String dist;
+		  private final int keys;
+		  private double zetan;
+		  private double alpha;
+		  private double eta;
+
+		  private KeyChooser(String dist, int keys) {
+			  this.dist = dist;
+			  this.keys = keys;
+			  if(dist.equals("zipfian")) {
+				  for(int j = 1; j <= keys; j++) {
+					  zetan += 1 / Math.pow(j, THETA);
+				  }
+				  double zeta2 = 1 + 1 / Math.pow(2, THETA);
+				  alpha = 1 / (1 - THETA);
+				  eta = (1 - Math.pow(2.0 / keys, 1 - THETA)) / (1 - zeta2 / zetan);
+			  }
+			  else if(!dist.equals("uniform") && !dist.equals("sequential")) {
+				  throw new IllegalArgumentException("unknown distribution " + dist);
+			  }
+		  }
+
+		  private int next(SplittableRandom rnd, int client, int j, int clients) {
+			  if(dist.equals("uniform")) {
+				  return rnd.nextInt(keys);
+			  }
+			  if(dist.equals("sequential")) {
+				  return (int) (((long) j * clients + client) % keys);
+			  }
+			  double u = rnd.nextDouble();
+			  double uz = u * zetan;
+			  if(uz < 1) {
+				  return 0;
+			  }
+			  if(uz < 1 + Math.pow(0.5, THETA)) {
+				  return 1;
+			  }
+			  return (int) Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, alpha)));
+		  }
+	  }
+  }
+
+  /**
+   * public class LatencyHistogram
+   *
+   * Log-linear histogram of nanosecond latencies: every power of 2 is cut into 32 buckets,
+   * so a percentile is within about 3% of the recorded value.
+   * Not thread-safe; keep one per thread and add() them together.
+   */
+  public static class LatencyHistogram {
+	  private static final int SUB_BITS = 5;
+	  private static final int SUB = 1 << SUB_BITS;
+	  private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB];
+	  private long count;
+	  private long max;
+
+	  public void record(long nanos) { //O(1)
+		  nanos = Math.max(0, nanos);
+		  counts[bucket(nanos)]++;
+		  count++;
+		  max = Math.max(max, nanos);
+	  }
+
+	  public void add(LatencyHistogram other) { //O(buckets)
+		  for(int j = 0; j < counts.length; j++) {
+			  counts[j] += other.counts[j];
+		  }
+		  count += other.count;
+		  max = Math.max(max, other.max);
+	  }
+
+	  public long count() { //O(1)
+		  return count;
+	  }
+
+	  public long max() { //O(1)
+		  return max;
+	  }
+
+	  /**
+	   * public long percentile(double p)
+	   *
+	   * Returns the upper bound of the bucket holding the p-th percentile, or 0 if nothing was recorded.
+	   */
+	  public long percentile(double p) { //O(buckets)
+		  long rank = (long) Math.ceil(p / 100 * count);
+		  long seen = 0;
+		  for(int j = 0; j < counts.length; j++) {
+			  seen += counts[j];
+			  if(seen >= rank && seen > 0) {
+				  return Math.min(max, upperBound(j));
+			  }
+		  }
+		  return 0;
+	  }
+
+	  private static int bucket(long v) {
+		  if(v < SUB) {
+			  return (int) v;
+		  }
+		  int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		  return (shift + 1) * SUB + (int) ((v >>> shift) - SUB);
+	  }
+
+	  private static long upperBound(int bucket) {
+		  if(bucket < SUB) {
+			  return bucket;
+		  }
+		  int shift = bucket / SUB - 1;
+		  long low = (long) (bucket % SUB + SUB) << shift;
+		  return low + (1L << shift) - 1;
+	  }
+  }
+
+  /**
+   * public class Entry
+   *
+   * An item of the tree (key and info), as sent by rangePublisher.
+   */
+  public static final class Entry {
+	  private final int key;
+	  private final String info;
+
+	  public Entry(int key, String info) {
+		  this.key = key;
+		  this.info = info;
+	  }
+
+	  public int getKey() {
+		  return this.key;
+	  }
+
+	  public String getValue() {
+		  return this.info;
+	  }
+
+	  public String toString() {
+		  return this.key + "=" + this.info;
+	  }
+  }
+
+  /**
+   * One subscriber's scan of a rangePublisher. Signals are sent only from drain, and only one
+   * thread drains at a time; a request made from inside onNext adds demand to the running drain
+   * instead of recursing.
+   */
+  private static final class RangeSubscription implements Flow.Subscription {
+	  private final AVLTree tree;
+	  private final int hi;
+	  private final Flow.Subscriber<? super Entry> subscriber;
+	  private final AtomicLong demand = new AtomicLong(); //Long.MAX_VALUE means unbounded
+	  private final AtomicInteger wip = new AtomicInteger(); //drain calls not handled yet
+	  private final int[] keys = new int[RANGE_CHUNK];
+	  private final String[] infos = new String[RANGE_CHUNK];
+	  private int next; //smallest key not sent yet
+	  private boolean exhausted;
+	  private volatile boolean cancelled;
+	  private volatile Throwable error;
+
+	  private RangeSubscription(AVLTree tree, int lo, int hi, Flow.Subscriber<? super Entry> subscriber) {
+		  this.tree = tree;
+		  this.hi = hi;
+		  this.subscriber = subscriber;
+		  this.next = lo;
+		  this.exhausted = lo > hi;
+	  }
+
+	  public void request(long n) {
+		  if(n <= 0) {
+			  this.error = new IllegalArgumentException("request(" + n + "), demand must be positive");
+		  }
+		  else {
+			  long current;
+			  long updated;
+			  do {
+				  current = this.demand.get();
+				  updated = current + n < 0 ? Long.MAX_VALUE : current + n;
+			  } while(!this.demand.compareAndSet(current, updated));
+		  }
+		  drain();
+	  }
+
+	  public void cancel() {
+		  this.cancelled = true;
+	  }
+
+	  private void drain() {
+		  if(this.wip.getAndIncrement() != 0) {
+			  return;
+		  }
+		  int missed = 1;
+		  do {
+			  while(!this.cancelled) {
+				  if(this.error != null) {
+					  this.cancelled = true;
+					  this.subscriber.onError(this.error);
+					  return;
+				  }
+				  if(this.exhausted) {
+					  this.cancelled = true;
+					  this.subscriber.onComplete();
+					  return;
+				  }
+				  long wanted = this.demand.get();
+				  if(wanted == 0) {
+					  break;
+				  }
+				  int count = fill((int) Math.min(wanted, RANGE_CHUNK));
+				  for(int i = 0; i < count; i++) {
+					  String info = this.infos[i];
+					  this.infos[i] = null;
+					  if(!this.cancelled) {
+						  this.subscriber.onNext(new Entry(this.keys[i], info));
+					  }
+				  }
+				  if(wanted != Long.MAX_VALUE) {
+					  this.demand.addAndGet(-count);
+				  }
+			  }
+			  missed = this.wip.addAndGet(-missed);
+		  } while(missed != 0);
+	  }
+
+	  /**
+	   * copies up to max items, starting at key next, into keys and infos
+	   * @return the number of items copied
+	   */
+	  private int fill(int max) { //O(log(n) + max)
+		  IAVLNode node = this.tree.ceilingNode(this.next);
+		  int count = 0;
+		  while(count < max && node != null && node.getKey() <= this.hi) {
+			  if(!isTombstone(node)) {
+				  this.keys[count] = node.getKey();
+				  this.infos[count] = node.getValue();
+				  count++;
+			  }
+			  node = this.tree.successor(node);
+		  }
+		  this.exhausted = node == null || node.getKey() > this.hi;
+		  if(!this.exhausted) { //so keys[count - 1] < hi, no overflow
+			  this.next = this.keys[count - 1] + 1;
+		  }
+		  return count;
+	  }
+  }
+
+  /**
+   * public class ValueArena
+   *
+   * Append-only off-heap store of String infos. Every distinct info is UTF-8 encoded once
+   * into direct memory and named by an int handle; storing an equal info again returns the
+   * same handle, found through a hash table over the stored bytes (no Strings are kept).
+   * Nothing is ever freed, so it suits infos that repeat a lot (status codes, tenant names).
+   * Handles are 24 bits (they share a node with its height), so an arena holds at most
+   * 2^24 distinct infos. Not thread-safe, like the trees that use it.
+   */
+  public static class ValueArena {
+	  private static final int CHUNK_BYTES = 1 << 20;
+	  private static final int MAX_HANDLES = 1 << 24;
+	  private final ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	  private long[] locations = new long[16]; //chunk index << 32 | offset, by handle
+	  private int[] lengths = new int[16];
+	  private int[] hashes = new int[16];
+	  private int count; //number of distinct infos
+	  private int[] table = new int[32]; //open addressing, handle + 1 per slot, 0 for empty
+	  private long offHeapBytes;
+
+	  /**
+	   * public int intern(String info)
+	   *
+	   * Returns the handle of info, storing it first if it is not in the arena yet.
+	   * null has the handle -1.
+	   * @throws IllegalStateException if info is new and the arena already holds 2^24 infos
+	   */
+	  public int intern(String info) { //O(length) expected
+		  if(info == null) {
+			  return -1;
+		  }
+		  byte[] bytes = info.getBytes(StandardCharsets.UTF_8);
+		  int hash = Arrays.hashCode(bytes);
+		  int mask = table.length - 1;
+		  int slot = mix(hash) & mask;
+		  while(table[slot] != 0) {
+			  int handle = table[slot] - 1;
+			  if(hashes[handle] == hash && sameBytes(handle, bytes)) {
+				  return handle;
+			  }
+			  slot = (slot + 1) & mask;
+		  }
+		  if(count == MAX_HANDLES) {
+			  throw new IllegalStateException("ValueArena is full: " + MAX_HANDLES + " distinct infos");
+		  }
+		  int handle = append(bytes, hash);
+		  table[slot] = handle + 1;
+		  if(2 * count > table.length) {
+			  rehash();
+		  }
+		  return handle;
+	  }
+
+	  /**
+	   * public String decode(int handle)
+	   *
+	   * Returns a new String with the info of handle (null for -1).
+	   */
+	  public String decode(int handle) { //O(length)
+		  if(handle == -1) {
+			  return null;
+		  }
+		  byte[] bytes = new byte[lengths[handle]];
+		  chunks.get((int) (locations[handle] >>> 32)).get((int) locations[handle], bytes);
+		  return new String(bytes, StandardCharsets.UTF_8);
+	  }
+
+	  /**
+	   * public ByteBuffer bytes(int handle)
+	   *
+	   * Returns a read-only view of the UTF-8 bytes of handle, without copying (null for -1).
+	   */
+	  public ByteBuffer bytes(int handle) { //O(1)
+		  if(handle == -1) {
+			  return null;
+		  }
+		  ByteBuffer chunk = chunks.get((int) (locations[handle] >>> 32));
+		  return chunk.slice((int) locations[handle], lengths[handle]).asReadOnlyBuffer();
+	  }
+
+	  /**
+	   * public int size()
+	   *
+	   * Returns the number of distinct infos stored.
+	   */
+	  public int size() { //O(1)
+		  return count;
+	  }
+
+	  /**
+	   * public long offHeapBytes()
+	   *
+	   * Returns the direct memory reserved by the arena.
+	   */
+	  public long offHeapBytes() { //O(1)
+		  return offHeapBytes;
+	  }
+
+	  private int append(byte[] bytes, int hash) { //O(length) amortized
+		  ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		  if(chunk == null || chunk.remaining() < bytes.length) {
+			  chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_BYTES, bytes.length));
+			  chunks.add(chunk);
+			  offHeapBytes += chunk.capacity();
+		  }
+		  if(count == locations.length) {
+			  locations = Arrays.copyOf(locations, 2 * count);
+			  lengths = Arrays.copyOf(lengths, 2 * count);
+			  hashes = Arrays.copyOf(hashes, 2 * count);
+		  }
+		  locations[count] = ((long) (chunks.size() - 1) << 32) | chunk.position();
+		  lengths[count] = bytes.length;
+		  hashes[count] = hash;
+		  chunk.put(bytes);
+		  count++;
+		  return count - 1;
+	  }
+
+	  private boolean sameBytes(int handle, byte[] bytes) { //O(length)
+		  if(lengths[handle] != bytes.length) {
+			  return false;
+		  }
+		  ByteBuffer chunk = chunks.get((int) (locations[handle] >>> 32));
+		  int offset = (int) locations[handle];
+		  for(int j = 0; j < bytes.length; j++) {
+			  if(chunk.get(offset + j) != bytes[j]) {
+				  return false;
+			  }
+		  }
+		  return true;
+	  }
+
+	  private void rehash() { //O(count)
+		  table = new int[2 * table.length];
+		  int mask = table.length - 1;
+		  for(int handle = 0; handle < count; handle++) {
+			  int slot = mix(hashes[handle]) & mask;
+			  while(table[slot] != 0) {
+				  slot = (slot + 1) & mask;
+			  }
+			  table[slot] = handle + 1;
+		  }
+	  }
+
+	  private static int mix(int hash) { // spread the bits, Arrays.hashCode is weak in the low bits
+		  hash *= 0x9E3779B9;
+		  return hash ^ (hash >>> 16);
+	  }
+  }
+
+  /**
+   * JFR event for an insert, delete, split or join that ran longer than the threshold.
+   * Disabled by default; turn it on in a recording's settings, e.g.
+   * AVLTree.Operation#enabled=true and AVLTree.Operation#threshold=5 ms.
+   * While it is disabled an operation only pays for the isEnabled() check.
+   */
+  @Name("AVLTree.Operation")
+  @Label("AVL Tree Operation")
+  @Category("AVL Tree")
+  @Description("An insert, delete, split or join of an AVLTree")
+  @Enabled(false)
+  @Threshold("1 ms")
+  @StackTrace(false)
+  private static final class OperationEvent extends Event {
+	  @Label("Operation")
+	  private String operation;
+
+	  @Label("Key")
+	  private int key;
+
+	  @Label("Path Length")
+	  @Description("Depth of the node that was inserted, deleted or split at; levels the joined node went down")
+	  private int pathLength;
+
+	  @Label("Rebalances")
+	  @Description("Rebalancing operations, counted as in insert and delete")
+	  private int rebalances;
+
+	  @Label("Subtree Size")
+	  @Description("Items under the root the operation changed sizes up to (before a split, after the rest)")
+	  private int subtreeSize;
+
+	  private void commit(String operation, int key, int pathLength, int rebalances, int subtreeSize) {
+		  this.operation = operation;
+		  this.key = key;
+		  this.pathLength = pathLength;
+		  this.rebalances = rebalances;
+		  this.subtreeSize = subtreeSize;
+		  commit();
+	  }
+  }
+
+  /**
+   * public class ShapeReport
+   *
+   * The shape of an AVLTree when shapeReport() was called.
+   * Under WAVL the root's rank (getHeight) may be above the depth actually measured.
+   */
+  public static class ShapeReport {
+	  private final int nodes;
+	  private final int height;
+	  private int[] depthHistogram = new int[0];
+	  private int minLeafDepth = -1;
+	  private int maxLeafDepth = -1;
+
+	  private ShapeReport(int nodes, int height) {
+		  this.nodes = nodes;
+		  this.height = height;
+	  }
+
+	  private void walk(IAVLNode node, int depth) { //O(n)
+		  if(node.getKey() == -1) {
+			  return;
+		  }
+		  if(depth >= this.depthHistogram.length) {
+			  this.depthHistogram = Arrays.copyOf(this.depthHistogram, depth + 1);
+		  }
+		  this.depthHistogram[depth]++;
+		  if(node.getLeft().getKey() == -1 && node.getRight().getKey() == -1) {
+			  if(this.minLeafDepth == -1 || depth < this.minLeafDepth) {
+				  this.minLeafDepth = depth;
+			  }
+			  if(depth > this.maxLeafDepth) {
+				  this.maxLeafDepth = depth;
+			  }
+		  }
+		  walk(node.getLeft(), depth + 1);
+		  walk(node.getRight(), depth + 1);
+	  }
+
+	  /**
+	   * @return the number of nodes, tombstones included
+	   */
+	  public int nodes() {
+		  return this.nodes;
+	  }
+
+	  /**
+	   * @return getHeight() of the root, -1 for an empty tree
+	   */
+	  public int height() {
+		  return this.height;
+	  }
+
+	  /**
+	   * @return the height of a perfectly balanced tree with nodes() nodes, -1 for none
+	   */
+	  public int optimalHeight() {
+		  return 31 - Integer.numberOfLeadingZeros(this.nodes);
+	  }
+
+	  /**
+	   * @return levels of the tree over levels of the optimal tree (1.0 when perfectly balanced)
+	   */
+	  public double heightRatio() {
+		  if(this.nodes == 0) {
+			  return 1.0;
+		  }
+		  return (this.height + 1) / (double) (optimalHeight() + 1);
+	  }
+
+	  /**
+	   * @return a copy of the node count at each depth, the root at depth 0
+	   */
+	  public int[] depthHistogram() {
+		  return this.depthHistogram.clone();
+	  }
+
+	  public int minLeafDepth() {
+		  return this.minLeafDepth;
+	  }
+
+	  public int maxLeafDepth() {
+		  return this.maxLeafDepth;
+	  }
+
+	  public int leafDepthSpread() {
+		  return this.maxLeafDepth - this.minLeafDepth;
+	  }
+
+	  public String toString() {
+		  StringBuilder sb = new StringBuilder();
+		  sb.append("nodes=").append(this.nodes).append(" height=").append(this.height)
+		  	.append(" optimal=").append(optimalHeight())
+		  	.append(String.format(" ratio=%.3f", heightRatio()))
+		  	.append(" leaves=[").append(this.minLeafDepth).append(", ").append(this.maxLeafDepth).append("]\n");
+		  for(int d = 0; d < this.depthHistogram.length; d++) {
+			  sb.append(String.format("%3d %d\n", d, this.depthHistogram[d]));
+		  }
+		  return sb.toString();
+	  }
+  }
+
+  /**
+   * Bounded stack of unlinked nodes, shared by a tree and the trees split from it
+   * (the trees from partition get their own)
+   */
+  private static class NodePool {
+	  private final AVLNode[] free;
+	  private int size;
+	  private long hits;
+	  private long misses;
+
+	  private NodePool(int capacity) {
+		  this.free = new AVLNode[capacity];
+	  }
+  }
+
+  /**
+   * public class AVLSequence
+   *
+   * A sequence of infos kept in an AVL tree whose keys are implicit:
+   * the key of an item is its position, derived from the subtree sizes.
+   * Supports insert/remove/get at an index, concat and split in O(log(n)).
+   */
+  public static class AVLSequence {
+	  private IAVLNode root;
+	  private IAVLNode detached; //node cut out by removeFirst
+
+	  public AVLSequence() { //O(1)
+		  this.root = VIRTUAL;
+	  }
+
+	  /**
+	   * public static AVLSequence fromArray(String[] infos)
+	   *
+	   * builds a sequence holding infos in their array order.
+	   */
+	  public static AVLSequence fromArray(String[] infos) { //O(n)
+		  AVLSequence seq = new AVLSequence();
+		  seq.root = seq.build(infos, 0, infos.length);
+		  seq.root.setParent(null);
+		  return seq;
+	  }
+
+	  /**
+	   * public boolean empty()
+	   *
+	   * returns true if and only if the sequence is empty
+	   */
+	  public boolean empty() { //O(1)
+		  return !this.root.isRealNode();
+	  }
+
+	  /**
+	   * public int size()
+	   *
+	   * Returns the number of items in the sequence.
+	   */
+	  public int size() { //O(1)
+		  return this.root.getSize();
+	  }
+
+	  /**
+	   * public String get(int i)
+	   *
+	   * returns the info at position i.
+	   * throws IndexOutOfBoundsException if i is not in [0, size()).
+	   */
+	  public String get(int i) { //O(log(n))
+		  checkIndex(i, size());
+		  IAVLNode curr = this.root;
+		  while(true) {
+			  int leftSize = curr.getLeft().getSize();
+			  if(i < leftSize) {
+				  curr = curr.getLeft();
+			  }
+			  else if(i > leftSize) {
+				  i = i - leftSize - 1;
+				  curr = curr.getRight();
+			  }
+			  else {
+				  return curr.getValue();
+			  }
+		  }
+	  }
+
+	  /**
+	   * public void insertAt(int i, String info)
+	   *
+	   * inserts info so that it is at position i; items from i on move one position up.
+	   * throws IndexOutOfBoundsException if i is not in [0, size()].
+	   */
+	  public void insertAt(int i, String info) { //O(log(n))
+		  checkIndex(i, size() + 1);
+		  this.root = insert(this.root, i, new AVLNode(0, info));
+		  this.root.setParent(null);
+	  }
+
+	  /**
+	   * public String removeAt(int i)
+	   *
+	   * removes the item at position i and returns its info; items after i move one position down.
+	   * throws IndexOutOfBoundsException if i is not in [0, size()).
+	   */
+	  public String removeAt(int i) { //O(log(n))
+		  String info = get(i);
+		  this.root = remove(this.root, i);
+		  this.root.setParent(null);
+		  return info;
+	  }
+
+	  /**
+	   * public void concat(AVLSequence other)
+	   *
+	   * appends the items of other after the items of this sequence.
+	   * other is left empty.
+	   */
+	  public void concat(AVLSequence other) { //O(log(n))
+		  if(other.empty()) {
+			  return;
+		  }
+		  if(this.empty()) {
+			  this.root = other.root;
+		  }
+		  else {
+			  IAVLNode right = removeFirst(other.root);
+			  this.root = join(this.root, this.detached, right);
+			  this.detached = null;
+		  }
+		  this.root.setParent(null);
+		  other.root = VIRTUAL;
+	  }
+
+	  /**
+	   * public AVLSequence[] splitAt(int i)
+	   *
+	   * splits the sequence before position i.
+	   * Returns an array [s1, s2]: s1 holds positions [0, i), s2 holds positions [i, size()).
+	   * this sequence is left empty.
+	   * throws IndexOutOfBoundsException if i is not in [0, size()].
+	   */
+	  public AVLSequence[] splitAt(int i) { //O(log(n))
+		  checkIndex(i, size() + 1);
+		  IAVLNode[] parts = new IAVLNode[2];
+		  split(this.root, i, parts);
+		  AVLSequence[] arr = new AVLSequence[2];
+		  arr[0] = new AVLSequence();
+		  arr[1] = new AVLSequence();
+		  for(int j = 0; j < 2; j++) {
+			  parts[j].setParent(null);
+			  arr[j].root = parts[j];
+		  }
+		  this.root = VIRTUAL;
+		  return arr;
+	  }
+
+	  /**
+	   * public String[] toArray()
+	   *
+	   * Returns an array with all infos in sequence order.
+	   */
+	  public String[] toArray() { //O(n)
+		  String[] arr = new String[size()];
+		  inOrder(this.root, arr, 0);
+		  return arr;
+	  }
+
+	  public IAVLNode getRoot() { //O(1)
+		  return this.root;
+	  }
+
+	  private static int inOrder(IAVLNode node, String[] arr, int index) { //O(n)
+		  if(!node.isRealNode()) {
+			  return index;
+		  }
+		  index = inOrder(node.getLeft(), arr, index);
+		  arr[index] = node.getValue();
+		  index++;
+		  return inOrder(node.getRight(), arr, index);
+	  }
+
+	  private static void checkIndex(int i, int bound) {
+		  if(i < 0 || i >= bound) {
+			  throw new IndexOutOfBoundsException("index " + i + ", bound " + bound);
+		  }
+	  }
+
+	  private IAVLNode build(String[] infos, int from, int to) { //O(to - from)
+		  if(from >= to) {
+			  return VIRTUAL;
+		  }
+		  int mid = (from + to) >>> 1;
+		  IAVLNode node = new AVLNode(0, infos[mid]);
+		  setChildren(node, build(infos, from, mid), build(infos, mid + 1, to));
+		  return node;
+	  }
+
+	  private IAVLNode insert(IAVLNode node, int i, IAVLNode toInsert) { //O(log(n))
+		  if(!node.isRealNode()) {
+			  return toInsert;
+		  }
+		  int leftSize = node.getLeft().getSize();
+		  if(i <= leftSize) {
+			  setChildren(node, insert(node.getLeft(), i, toInsert), node.getRight());
+		  }
+		  else {
+			  setChildren(node, node.getLeft(), insert(node.getRight(), i - leftSize - 1, toInsert));
+		  }
+		  return rebalance(node);
+	  }
+
+	  private IAVLNode remove(IAVLNode node, int i) { //O(log(n))
+		  int leftSize = node.getLeft().getSize();
+		  if(i < leftSize) {
+			  setChildren(node, remove(node.getLeft(), i), node.getRight());
+			  return rebalance(node);
+		  }
+		  if(i > leftSize) {
+			  setChildren(node, node.getLeft(), remove(node.getRight(), i - leftSize - 1));
+			  return rebalance(node);
+		  }
+		  if(!node.getLeft().isRealNode()) {
+			  return node.getRight();
+		  }
+		  if(!node.getRight().isRealNode()) {
+			  return node.getLeft();
+		  }
+		  IAVLNode right = removeFirst(node.getRight());
+		  IAVLNode successor = this.detached;
+		  this.detached = null;
+		  setChildren(successor, node.getLeft(), right);
+		  return rebalance(successor);
+	  }
+
+	  /**
+	   * cuts the first node out of node's subtree into this.detached
+	   * @return the root of what is left of the subtree
+	   */
+	  private IAVLNode removeFirst(IAVLNode node) { //O(log(n))
+		  if(!node.getLeft().isRealNode()) {
+			  this.detached = node;
+			  return node.getRight();
+		  }
+		  setChildren(node, removeFirst(node.getLeft()), node.getRight());
+		  return rebalance(node);
+	  }
+
+	  /**
+	   * @pre all items of left come before x, all items of right come after x
+	   * @return the root of left, x, right joined in this order
+	   */
+	  private IAVLNode join(IAVLNode left, IAVLNode x, IAVLNode right) { //O(|Rank.left - Rank.right| + 1)
+		  if(left.getHeight() > right.getHeight() + 1) {
+			  setChildren(left, left.getLeft(), join(left.getRight(), x, right));
+			  return rebalance(left);
+		  }
+		  if(right.getHeight() > left.getHeight() + 1) {
+			  setChildren(right, join(left, x, right.getLeft()), right.getRight());
+			  return rebalance(right);
+		  }
+		  setChildren(x, left, right);
+		  return x;
+	  }
+
+	  /**
+	   * puts the first i items of node's subtree in parts[0] and the rest in parts[1]
+	   */
+	  private void split(IAVLNode node, int i, IAVLNode[] parts) { //O(log(n))
+		  if(!node.isRealNode()) {
+			  parts[0] = node;
+			  parts[1] = node;
+			  return;
+		  }
+		  IAVLNode left = node.getLeft();
+		  IAVLNode right = node.getRight();
+		  int leftSize = left.getSize();
+		  if(i <= leftSize) {
+			  split(left, i, parts);
+			  parts[1] = join(parts[1], node, right);
+		  }
+		  else {
+			  split(right, i - leftSize - 1, parts);
+			  parts[0] = join(left, node, parts[0]);
+		  }
+	  }
+
+	  private IAVLNode rebalance(IAVLNode node) { //O(1)
+		  int balance = node.getLeft().getHeight() - node.getRight().getHeight();
+		  if(balance > 1) {
+			  IAVLNode leftChild = node.getLeft();
+			  if(leftChild.getLeft().getHeight() < leftChild.getRight().getHeight()) {
+				  setChildren(node, rotateLeft(leftChild), node.getRight());
+			  }
+			  return rotateRight(node);
+		  }
+		  if(balance < -1) {
+			  IAVLNode rightChild = node.getRight();
+			  if(rightChild.getRight().getHeight() < rightChild.getLeft().getHeight()) {
+				  setChildren(node, node.getLeft(), rotateRight(rightChild));
+			  }
+			  return rotateLeft(node);
+		  }
+		  return node;
+	  }
+
+	  private IAVLNode rotateRight(IAVLNode upper) { //O(1)
+		  IAVLNode lower = upper.getLeft();
+		  setChildren(upper, lower.getRight(), upper.getRight());
+		  setChildren(lower, lower.getLeft(), upper);
+		  return lower;
+	  }
+
+	  private IAVLNode rotateLeft(IAVLNode upper) { //O(1)
+		  IAVLNode lower = upper.getRight();
+		  setChildren(upper, upper.getLeft(), lower.getLeft());
+		  setChildren(lower, upper, lower.getRight());
+		  return lower;
+	  }
+
+	  // links left and right under node and recomputes node's height and size
+	  private void setChildren(IAVLNode node, IAVLNode left, IAVLNode right) { //O(1)
+		  node.setLeft(left);
+		  node.setRight(right);
+		  if(left.isRealNode()) {
+			  left.setParent(node);
+		  }
+		  if(right.isRealNode()) {
+			  right.setParent(node);
+		  }
+		  node.setHeight(Math.max(left.getHeight(), right.getHeight()) + 1);
+		  node.setSize(left.getSize() + right.getSize() + 1);
+	  }
+  }
+
+  /**
+   * public class BlockAVLTree
+   *
+   * Same operations as AVLTree, but every node holds a sorted block of up to BLOCK_CAPACITY
+   * keys and infos in two arrays, and all keys of a node lie between the keys of its left and
+   * right subtrees. A lookup visits about log(n/BLOCK_CAPACITY) nodes and then binary searches
+   * one block, so it misses the cache far less often than AVLTree. A key costs about 9 bytes in a
+   * full block, 18 in a half-full one and at most 37 at BLOCK_MIN, against a 40 byte node.
+   * In-order scans copy whole blocks.
+   * A full block is split in half, the upper half going to a new node at its successor position,
+   * so inserts alone keep blocks at least half full. A block that drops below BLOCK_MIN (by a
+   * delete, or at the seam of a split or join) is merged into a neighbouring block if they fit
+   * together, and otherwise takes items from it; so every block but a lone one holds at least
+   * BLOCK_MIN items. Rotations, sizes, join and split work on whole blocks.
+   * Not thread-safe, like AVLTree.
+   */
+  public static class BlockAVLTree {
+	  private static final int BLOCK_CAPACITY = 64;
+	  private static final int BLOCK_MIN = BLOCK_CAPACITY / 4;
+	  private static final int BLOCK_BYTES = 48 + 2 * (16 + 4 * BLOCK_CAPACITY); //node + the two arrays (compressed oops)
+	  private Block root; //null for an empty tree
+	  private Block detached; //block cut out by removeFirst/removeLast
+	  private int rebalances; //rotations of the running operation
+
+	  public BlockAVLTree() { //O(1)
+		  this.root = null;
+	  }
+
+	  /**
+	   * public boolean empty()
+	   *
+	   * returns true if and only if the tree is empty
+	   */
+	  public boolean empty() { //O(1)
+		  return this.root == null;
+	  }
+
+	  /**
+	   * public String search(int k)
+	   *
+	   * returns the info of an item with key k if it exists in the tree
+	   * otherwise, returns null
+	   */
+	  public String search(int k) { //O(log(n))
+		  Block block = blockOf(k);
+		  if(block == null) {
+			  return null;
+		  }
+		  int pos = Arrays.binarySearch(block.keys, 0, block.count, k);
+		  return pos < 0 ? null : block.infos[pos];
+	  }
+
+	  /**
+	   * public int insert(int k, String i)
+	   *
+	   * inserts an item with key k and info i to the tree.
+	   * returns the number of rotations done (a double rotation is counted as 2),
+	   * or -1 if an item with key k already exists in the tree.
+	   */
+	  public int insert(int k, String i) { //O(log(n))
+		  Block block = blockOf(k);
+		  if(block != null && Arrays.binarySearch(block.keys, 0, block.count, k) >= 0) {
+			  return -1;
+		  }
+		  this.rebalances = 0;
+		  this.root = insert(this.root, k, i);
+		  return this.rebalances;
+	  }
+
+	  /**
+	   * public int delete(int k)
+	   *
+	   * deletes the item with key k from the tree, if it is there.
+	   * returns the number of rotations done (a double rotation is counted as 2),
+	   * or -1 if an item with key k was not found in the tree.
+	   */
+	  public int delete(int k) { //O(log(n))
+		  Block block = blockOf(k);
+		  int pos = block == null ? -1 : Arrays.binarySearch(block.keys, 0, block.count, k);
+		  if(pos < 0) {
+			  return -1;
+		  }
+		  this.rebalances = 0;
+		  block.removeAt(pos);
+		  if(block.count == 0) {
+			  this.root = removeBlock(this.root, block, k);
+		  }
+		  else {
+			  recount(this.root, block, k);
+			  fill(block);
+		  }
+		  return this.rebalances;
+	  }
+
+	  /**
+	   * public String min()
+	   *
+	   * Returns the info of the item with the smallest key in the tree,
+	   * or null if the tree is empty
+	   */
+	  public String min() { //O(log(n))
+		  if(this.root == null) {
+			  return null;
+		  }
+		  Block block = this.root;
+		  while(block.left != null) {
+			  block = block.left;
+		  }
+		  return block.infos[0];
+	  }
+
+	  /**
+	   * public String max()
+	   *
+	   * Returns the info of the item with the largest key in the tree,
+	   * or null if the tree is empty
+	   */
+	  public String max() { //O(log(n))
+		  if(this.root == null) {
+			  return null;
+		  }
+		  Block block = this.root;
+		  while(block.right != null) {
+			  block = block.right;
+		  }
+		  return block.infos[block.count - 1];
+	  }
+
+	  /**
+	   * public int[] keysToArray()
+	   *
+	   * Returns a sorted array which contains all keys in the tree,
+	   * or an empty array if the tree is empty.
+	   */
+	  public int[] keysToArray() { //O(n)
+		  int[] arr = new int[size()];
+		  inOrderKeys(this.root, arr, 0);
+		  return arr;
+	  }
+
+	  /**
+	   * public String[] infoToArray()
+	   *
+	   * Returns an array which contains all info in the tree,
+	   * sorted by their respective keys,
+	   * or an empty array if the tree is empty.
+	   */
+	  public String[] infoToArray() { //O(n)
+		  String[] arr = new String[size()];
+		  inOrderInfo(this.root, arr, 0);
+		  return arr;
+	  }
+
+	  /**
+	   * public int size()
+	   *
+	   * Returns the number of items in the tree.
+	   */
+	  public int size() { //O(1)
+		  return size(this.root);
+	  }
+
+	  /**
+	   * public long memoryFootprint()
+	   *
+	   * Returns an estimate, in bytes, of the heap held by the tree and its blocks,
+	   * counted as in AVLTree.memoryFootprint().
+	   */
+	  public long memoryFootprint() { //O(n/BLOCK_CAPACITY)
+		  return 24 + (long) countBlocks(this.root) * BLOCK_BYTES;
+	  }
+
+	  /**
+	   * public BlockAVLTree[] split(int x)
+	   *
+	   * splits the tree into 2 trees according to the key x.
+	   * Returns an array [t1, t2]: keys(t1) < x < keys(t2). The item with key x is dropped,
+	   * the block holding it is cut in two. This tree is left empty.
+	   * precondition: search(x) != null
+	   */
+	  public BlockAVLTree[] split(int x) { //O(log(n))
+		  Block[] parts = new Block[2];
+		  split(this.root, x, parts);
+		  BlockAVLTree[] arr = new BlockAVLTree[2];
+		  for(int j = 0; j < 2; j++) {
+			  arr[j] = new BlockAVLTree();
+			  arr[j].root = parts[j];
+		  }
+		  arr[0].fill(arr[0].lower(x)); // the two halves of the cut block
+		  arr[1].fill(arr[1].higher(x));
+		  this.root = null;
+		  return arr;
+	  }
+
+	  /**
+	   * public int join(IAVLNode x, BlockAVLTree t)
+	   *
+	   * joins t and x with the tree: the result has the items of both trees and x, and is kept here.
+	   * t is left empty.
+	   * Returns the complexity of the operation (|tree.rank - t.rank| + 1).
+	   * precondition: keys(x,t) < keys() or keys(x,t) > keys(). t/tree might be empty (rank = -1).
+	   */
+	  public int join(IAVLNode x, BlockAVLTree t) { //O(log(n))
+		  BlockAVLTree small;
+		  BlockAVLTree big;
+		  if(this.empty() ? (!t.empty() && t.root.first > x.getKey()) : this.root.first < x.getKey()) {
+			  small = this;
+			  big = t;
+		  }
+		  else {
+			  small = t;
+			  big = this;
+		  }
+		  boolean oneEmpty = small.empty() || big.empty();
+		  int diff = Math.abs(height(small.root) - height(big.root));
+		  Block joined = big.root;
+		  if(small.root != null) { // the last block of small sits between the two trees
+			  Block rest = removeLast(small.root);
+			  joined = join(rest, this.detached, big.root);
+			  this.detached = null;
+		  }
+		  int k = x.getKey();
+		  this.root = insert(joined, k, x.getValue()); // x lands at the seam, in a block next to it
+		  fill(lower(k)); // the seam blocks, which may be the lone blocks of small and big
+		  fill(higher(k));
+		  fill(blockOf(k));
+		  if(t != this) {
+			  t.root = null;
+		  }
+		  if(oneEmpty) {
+			  return height(this.root) + 1;
+		  }
+		  return diff + 1;
+	  }
+
+	  /**
+	   * @return the block whose key range holds k (whether k is in it or not), or null if there is none
+	   */
+	  private Block blockOf(int k) { //O(log(n/BLOCK_CAPACITY))
+		  Block block = this.root;
+		  while(block != null) {
+			  if(k < block.first) {
+				  block = block.left;
+			  }
+			  else if(k > block.last) {
+				  block = block.right;
+			  }
+			  else {
+				  return block;
+			  }
+		  }
+		  return null;
+	  }
+
+	  /**
+	   * @return the block with the smallest keys above k, or null
+	   */
+	  private Block higher(int k) { //O(log(n/BLOCK_CAPACITY))
+		  Block block = this.root;
+		  Block higher = null;
+		  while(block != null) {
+			  if(block.first > k) {
+				  higher = block;
+				  block = block.left;
+			  }
+			  else {
+				  block = block.right;
+			  }
+		  }
+		  return higher;
+	  }
+
+	  /**
+	   * @return the block with the largest keys below k, or null
+	   */
+	  private Block lower(int k) { //O(log(n/BLOCK_CAPACITY))
+		  Block block = this.root;
+		  Block lower = null;
+		  while(block != null) {
+			  if(block.last < k) {
+				  lower = block;
+				  block = block.right;
+			  }
+			  else {
+				  block = block.left;
+			  }
+		  }
+		  return lower;
+	  }
+
+	  /**
+	   * @pre k is not in the tree
+	   * @return the root of node's subtree with k added to the block whose range is nearest to k
+	   */
+	  private Block insert(Block node, int k, String info) { //O(log(n))
+		  if(node == null) { // empty tree
+			  Block block = new Block();
+			  block.insertAt(0, k, info);
+			  setChildren(block, null, null);
+			  return block;
+		  }
+		  if(k < node.first && node.left != null) {
+			  setChildren(node, insert(node.left, k, info), node.right);
+			  return rebalance(node);
+		  }
+		  if(k > node.last && node.right != null) {
+			  setChildren(node, node.left, insert(node.right, k, info));
+			  return rebalance(node);
+		  }
+		  int pos = -Arrays.binarySearch(node.keys, 0, node.count, k) - 1;
+		  if(node.count < BLOCK_CAPACITY) {
+			  node.insertAt(pos, k, info);
+			  setChildren(node, node.left, node.right);
+			  return node;
+		  }
+		  Block upper = node.splitOff(BLOCK_CAPACITY / 2);
+		  if(pos <= node.count) {
+			  node.insertAt(pos, k, info);
+		  }
+		  else {
+			  upper.insertAt(pos - node.count, k, info);
+		  }
+		  setChildren(node, node.left, insertFirst(node.right, upper));
+		  return rebalance(node);
+	  }
+
+	  /**
+	   * @return the root of node's subtree with block added before all its blocks
+	   */
+	  private Block insertFirst(Block node, Block block) { //O(log(n/BLOCK_CAPACITY))
+		  if(node == null) {
+			  setChildren(block, null, null);
+			  return block;
+		  }
+		  setChildren(node, insertFirst(node.left, block), node.right);
+		  return rebalance(node);
+	  }
+
+	  /**
+	   * unlinks target, found by a key k of its range
+	   * @return the root of what is left of node's subtree
+	   */
+	  private Block removeBlock(Block node, Block target, int k) { //O(log(n/BLOCK_CAPACITY))
+		  if(node != target) {
+			  if(k < node.first) {
+				  setChildren(node, removeBlock(node.left, target, k), node.right);
+			  }
+			  else {
+				  setChildren(node, node.left, removeBlock(node.right, target, k));
+			  }
+			  return rebalance(node);
+		  }
+		  if(node.left == null) {
+			  return node.right;
+		  }
+		  if(node.right == null) {
+			  return node.left;
+		  }
+		  Block right = removeFirst(node.right);
+		  Block successor = this.detached;
+		  this.detached = null;
+		  setChildren(successor, node.left, right);
+		  return rebalance(successor);
+	  }
+
+	  /**
+	   * cuts the first block of node's subtree into this.detached
+	   * @return the root of what is left of the subtree
+	   */
+	  private Block removeFirst(Block node) { //O(log(n/BLOCK_CAPACITY))
+		  if(node.left == null) {
+			  this.detached = node;
+			  return node.right;
+		  }
+		  setChildren(node, removeFirst(node.left), node.right);
+		  return rebalance(node);
+	  }
+
+	  /**
+	   * cuts the last block of node's subtree into this.detached
+	   * @return the root of what is left of the subtree
+	   */
+	  private Block removeLast(Block node) { //O(log(n/BLOCK_CAPACITY))
+		  if(node.right == null) {
+			  this.detached = node;
+			  return node.left;
+		  }
+		  setChildren(node, node.left, removeLast(node.right));
+		  return rebalance(node);
+	  }
+
+	  /**
+	   * recomputes the sizes on the path to target (found by a key k of its range), after its count changed
+	   */
+	  private void recount(Block node, Block target, int k) { //O(log(n/BLOCK_CAPACITY))
+		  if(node != target) {
+			  recount(k < node.first ? node.left : node.right, target, k);
+		  }
+		  setChildren(node, node.left, node.right);
+	  }
+
+	  /**
+	   * merges or evens out block (which may be null) with its neighbours until it holds
+	   * at least BLOCK_MIN items or is the only block
+	   */
+	  private void fill(Block block) { //O(log(n/BLOCK_CAPACITY) + BLOCK_CAPACITY)
+		  while(block != null && block.count < BLOCK_MIN) {
+			  block = mergeNeighbour(block);
+		  }
+	  }
+
+	  /**
+	   * merges block with the next or the previous block, if one of them has room for it;
+	   * otherwise moves items from the next (or previous) block so both end up with at least
+	   * half of their total, which is over BLOCK_CAPACITY
+	   * @return the block now holding block's items, or null if block is the only block
+	   */
+	  private Block mergeNeighbour(Block block) { //O(log(n/BLOCK_CAPACITY) + BLOCK_CAPACITY)
+		  Block next = higher(block.last);
+		  if(next != null && block.count + next.count <= BLOCK_CAPACITY) {
+			  absorb(block, next);
+			  return block;
+		  }
+		  Block previous = lower(block.first);
+		  if(previous != null && previous.count + block.count <= BLOCK_CAPACITY) {
+			  absorb(previous, block);
+			  return previous;
+		  }
+		  if(next != null) {
+			  block.takeFirst(next, (next.count - block.count) / 2);
+			  recount(this.root, next, next.first);
+		  }
+		  else if(previous != null) {
+			  block.takeLast(previous, (previous.count - block.count) / 2);
+			  recount(this.root, previous, previous.first);
+		  }
+		  else {
+			  return null;
+		  }
+		  recount(this.root, block, block.first);
+		  return block;
+	  }
+
+	  /**
+	   * moves the items of high, the block after low, to the end of low and unlinks high
+	   */
+	  private void absorb(Block low, Block high) { //O(log(n/BLOCK_CAPACITY) + BLOCK_CAPACITY)
+		  this.root = removeBlock(this.root, high, high.first);
+		  low.append(high);
+		  recount(this.root, low, low.first);
+	  }
+
+	  /**
+	   * puts the blocks of node's subtree with keys below x in parts[0] and above x in parts[1],
+	   * cutting the block that holds x
+	   */
+	  private void split(Block node, int x, Block[] parts) { //O(log(n))
+		  if(node == null) {
+			  parts[0] = null;
+			  parts[1] = null;
+			  return;
+		  }
+		  Block left = node.left;
+		  Block right = node.right;
+		  if(x < node.first) {
+			  split(left, x, parts);
+			  parts[1] = join(parts[1], node, right);
+		  }
+		  else if(x > node.last) {
+			  split(right, x, parts);
+			  parts[0] = join(left, node, parts[0]);
+		  }
+		  else {
+			  int pos = Arrays.binarySearch(node.keys, 0, node.count, x);
+			  int below = pos >= 0 ? pos : -pos - 1;
+			  Block upper = node.splitOff(pos >= 0 ? pos + 1 : below);
+			  node.truncate(below);
+			  parts[0] = node.count == 0 ? left : join(left, node, null);
+			  parts[1] = upper.count == 0 ? right : join(null, upper, right);
+		  }
+	  }
+
+	  /**
+	   * @pre all keys of left are below the keys of x, all keys of right are above them
+	   * @return the root of left, x, right joined in this order
+	   */
+	  private Block join(Block left, Block x, Block right) { //O(|Rank.left - Rank.right| + 1)
+		  if(height(left) > height(right) + 1) {
+			  setChildren(left, left.left, join(left.right, x, right));
+			  return rebalance(left);
+		  }
+		  if(height(right) > height(left) + 1) {
+			  setChildren(right, join(left, x, right.left), right.right);
+			  return rebalance(right);
+		  }
+		  setChildren(x, left, right);
+		  return x;
+	  }
+
+	  private Block rebalance(Block node) { //O(1)
+		  int balance = height(node.left) - height(node.right);
+		  if(balance > 1) {
+			  Block leftChild = node.left;
+			  if(height(leftChild.left) < height(leftChild.right)) {
+				  setChildren(node, rotateLeft(leftChild), node.right);
+			  }
+			  return rotateRight(node);
+		  }
+		  if(balance < -1) {
+			  Block rightChild = node.right;
+			  if(height(rightChild.right) < height(rightChild.left)) {
+				  setChildren(node, node.left, rotateRight(rightChild));
+			  }
+			  return rotateLeft(node);
+		  }
+		  return node;
+	  }
+
+	  private Block rotateRight(Block upper) { //O(1)
+		  Block lower = upper.left;
+		  setChildren(upper, lower.right, upper.right);
+		  setChildren(lower, lower.left, upper);
+		  this.rebalances++;
+		  return lower;
+	  }
+
+	  private Block rotateLeft(Block upper) { //O(1)
+		  Block lower = upper.right;
+		  setChildren(upper, upper.left, lower.left);
+		  setChildren(lower, upper, lower.right);
+		  this.rebalances++;
+		  return lower;
+	  }
+
+	  // links left and right under node and recomputes node's height and size
+	  private static void setChildren(Block node, Block left, Block right) { //O(1)
+		  node.left = left;
+		  node.right = right;
+		  node.height = (byte) (Math.max(height(left), height(right)) + 1);
+		  node.size = size(left) + size(right) + node.count;
+	  }
+
+	  private static int height(Block node) { //O(1)
+		  return node == null ? -1 : node.height;
+	  }
+
+	  private static int size(Block node) { //O(1)
+		  return node == null ? 0 : node.size;
+	  }
+
+	  private static int inOrderKeys(Block node, int[] arr, int index) { //O(n)
+		  if(node == null) {
+			  return index;
+		  }
+		  index = inOrderKeys(node.left, arr, index);
+		  System.arraycopy(node.keys, 0, arr, index, node.count);
+		  return inOrderKeys(node.right, arr, index + node.count);
+	  }
+
+	  private static int inOrderInfo(Block node, String[] arr, int index) { //O(n)
+		  if(node == null) {
+			  return index;
+		  }
+		  index = inOrderInfo(node.left, arr, index);
+		  System.arraycopy(node.infos, 0, arr, index, node.count);
+		  return inOrderInfo(node.right, arr, index + node.count);
+	  }
+
+	  private static int countBlocks(Block node) { //O(n/BLOCK_CAPACITY)
+		  if(node == null) {
+			  return 0;
+		  }
+		  return countBlocks(node.left) + 1 + countBlocks(node.right);
+	  }
+
+	  /**
+	   * A node of a BlockAVLTree: count sorted items, and the links and AVL fields of the node
+	   */
+	  private static final class Block {
+		  private final int[] keys = new int[BLOCK_CAPACITY];
+		  private final String[] infos = new String[BLOCK_CAPACITY];
+		  private int count;
+		  private int first; //keys[0] and keys[count - 1], kept here so a descent reads only the node
+		  private int last;
+		  private int size; //items in the subtree
+		  private byte height;
+		  private Block left;
+		  private Block right;
+
+		  private void insertAt(int pos, int key, String info) { //O(BLOCK_CAPACITY)
+			  System.arraycopy(this.keys, pos, this.keys, pos + 1, this.count - pos);
+			  System.arraycopy(this.infos, pos, this.infos, pos + 1, this.count - pos);
+			  this.keys[pos] = key;
+			  this.infos[pos] = info;
+			  this.count++;
+			  bounds();
+		  }
+
+		  private void removeAt(int pos) { //O(BLOCK_CAPACITY)
+			  this.count--;
+			  System.arraycopy(this.keys, pos + 1, this.keys, pos, this.count - pos);
+			  System.arraycopy(this.infos, pos + 1, this.infos, pos, this.count - pos);
+			  this.infos[this.count] = null;
+			  bounds();
+		  }
+
+		  /**
+		   * moves the items from position from on to a new block
+		   */
+		  private Block splitOff(int from) { //O(BLOCK_CAPACITY)
+			  Block upper = new Block();
+			  upper.count = this.count - from;
+			  System.arraycopy(this.keys, from, upper.keys, 0, upper.count);
+			  System.arraycopy(this.infos, from, upper.infos, 0, upper.count);
+			  upper.bounds();
+			  truncate(from);
+			  return upper;
+		  }
+
+		  private void truncate(int count) { //O(BLOCK_CAPACITY)
+			  Arrays.fill(this.infos, count, this.count, null);
+			  this.count = count;
+			  bounds();
+		  }
+
+		  /**
+		   * moves the items of next, whose keys are all above ours, to the end of this block
+		   */
+		  private void append(Block next) { //O(BLOCK_CAPACITY)
+			  System.arraycopy(next.keys, 0, this.keys, this.count, next.count);
+			  System.arraycopy(next.infos, 0, this.infos, this.count, next.count);
+			  this.count += next.count;
+			  bounds();
+		  }
+
+		  /**
+		   * moves the first n items of next, whose keys are all above ours, to the end of this block
+		   */
+		  private void takeFirst(Block next, int n) { //O(BLOCK_CAPACITY)
+			  System.arraycopy(next.keys, 0, this.keys, this.count, n);
+			  System.arraycopy(next.infos, 0, this.infos, this.count, n);
+			  this.count += n;
+			  bounds();
+			  next.count -= n;
+			  System.arraycopy(next.keys, n, next.keys, 0, next.count);
+			  System.arraycopy(next.infos, n, next.infos, 0, next.count);
+			  Arrays.fill(next.infos, next.count, next.count + n, null);
+			  next.bounds();
+		  }
+
+		  /**
+		   * moves the last n items of previous, whose keys are all below ours, to the start of this block
+		   */
+		  private void takeLast(Block previous, int n) { //O(BLOCK_CAPACITY)
+			  System.arraycopy(this.keys, 0, this.keys, n, this.count);
+			  System.arraycopy(this.infos, 0, this.infos, n, this.count);
+			  previous.count -= n;
+			  System.arraycopy(previous.keys, previous.count, this.keys, 0, n);
+			  System.arraycopy(previous.infos, previous.count, this.infos, 0, n);
+			  Arrays.fill(previous.infos, previous.count, previous.count + n, null);
+			  this.count += n;
+			  bounds();
+			  previous.bounds();
+		  }
+
+		  private void bounds() { //O(1)
+			  if(this.count > 0) {
+				  this.first = this.keys[0];
+				  this.last = this.keys[this.count - 1];
+			  }
+		  }
+	  }
+  }
+
+  /**
+   * public class SelfCheck
+   *
+   * Regression driver: java AVLTree$SelfCheck [rounds]
+   * Runs seeded random operations against reference implementations (mostly java.util.TreeMap)
+   * and checks the invariants of the structures after every step.
+   * The core run covers insert, delete, search, split and join, and checks balance, heights,
+   * parent links, sizes, min and max; it also replays the shapes of the fixed baseline bugs.
+   * It runs again on trees with a node pool, which must hand out recycled nodes, and on WAVL
+   * trees, whose ranks must differ by 1 or 2 from their children's and stay within 2*log2(n),
+   * and with lazy deletes, where compact must remove tombstones and the pending keys stay bounded.
+   * Frozen snapshots answer search, ceilingKey, floorKey, rank and searchBatch like the map.
+   * PersistentAVLTree versions must stay as they were after later changes, and a WritePipeline
+   * must return what a sequential tree would, publish snapshots holding every completed change,
+   * and end with the same tree for one or several producers.
+   * Trees sharing a ValueArena, with and without a pool and switching arenas on the way, must
+   * return the infos (also as bytes from searchBytes) that the map holds.
+   * rangePublisher must send the map's range in order, never more than requested, once complete;
+   * cancel must stop it and request(0) must end it with onError.
+   * shapeReport must agree with the depths of the keys, and AVL trees with the AVL shape bounds.
+   * partition must give ordered parts of sizes within one of each other, each with its own pool.
+   * pollFirst, pollLast, the peeks and drainFirst are run as a priority queue under both policies.
+   * searchAll and containsAll are checked on sorted probe batches with repeats and misses.
+   * AVLSequence runs positional inserts, removes, splits and concats against an ArrayList.
+   * BlockAVLTree gets the same operations as the core run, and checks that block ranges are ordered and that
+   * every block but a lone one holds at least BLOCK_MIN items.
+   * Throws IllegalStateException on the first difference, prints "ok" otherwise.
+   */
+  public static class SelfCheck {
+	  public static void main(String[] args) {
+		  int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		  regressions();
+		  randomOps(() -> new AVLTree(), rounds, 7);
+		  poolOps(rounds, 17);
+		  randomOps(() -> new AVLTree(BalancePolicy.WAVL), rounds, 29);
+		  lazyOps(rounds, 53);
+		  frozenOps(rounds, 19);
+		  batchOps(rounds, 23);
+		  queueOps(rounds, 31);
+		  partitionOps(rounds, 37);
+		  persistentOps(rounds, 41);
+		  pipelineOps(rounds / 10 + 1, 43);
+		  arenaOps(rounds, 47);
+		  publisherOps(rounds, 59);
+		  shapeOps(rounds, 61);
+		  sequenceOps(rounds, 13);
+		  blockOps(rounds, 11);
+		  System.out.println("ok");
+	  }
+
+	  /**
+	   * the shapes of the baseline delete/split/join bugs fixed with the node layout change
+	   */
+	  private static void regressions() {
+		  // delete whose successor is the right child of the deleted node used to lose a size
+		  AVLTree t = new AVLTree();
+		  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+		  for(int k : new int[] {20, 10, 30, 25, 40}) {
+			  t.insert(k, "v" + k);
+			  ref.put(k, "v" + k);
+		  }
+		  t.delete(30);
+		  ref.remove(30);
+		  verify(t, ref);
+		  // split used to carry the size correction of one level into the next
+		  for(int x = 0; x < 64; x++) {
+			  t = new AVLTree();
+			  ref = new TreeMap<Integer, String>();
+			  for(int k = 0; k < 64; k++) {
+				  t.insert(k, "v" + k);
+				  ref.put(k, "v" + k);
+			  }
+			  AVLTree[] parts = t.split(x);
+			  verify(parts[0], new TreeMap<Integer, String>(ref.headMap(x)));
+			  verify(parts[1], new TreeMap<Integer, String>(ref.tailMap(x, false)));
+			  // joining trees of equal and unequal heights used to leave parent links and heights wrong
+			  parts[0].join(new AVLNode(x, "v" + x), parts[1]);
+			  verify(parts[0], ref);
+		  }
+	  }
+
+	  private static void randomOps(Supplier<AVLTree> newTree, int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = newTree.get();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  int space = rnd.nextInt(500) + 2;
+			  for(int op = 0; op < 400; op++) {
+				  int c = rnd.nextInt(20);
+				  int k = rnd.nextInt(space);
+				  if(c < 9) {
+					  String info = "v" + k + "." + op;
+					  check((t.insert(k, info) == -1) == ref.containsKey(k), "insert result", k);
+					  ref.putIfAbsent(k, info);
+				  }
+				  else if(c < 15) {
+					  check((t.delete(k) == -1) == !ref.containsKey(k), "delete result", k);
+					  ref.remove(k);
+				  }
+				  else if(c < 18) {
+					  check(Objects.equals(t.search(k), ref.get(k)), "search", k);
+				  }
+				  else if(!ref.isEmpty()) {
+					  Integer[] keys = ref.keySet().toArray(new Integer[0]);
+					  int x = keys[rnd.nextInt(keys.length)];
+					  String info = ref.get(x);
+					  AVLTree[] parts = t.split(x);
+					  verify(parts[0], new TreeMap<Integer, String>(ref.headMap(x)));
+					  verify(parts[1], new TreeMap<Integer, String>(ref.tailMap(x, false)));
+					  t = rnd.nextBoolean() ? parts[0] : parts[1];
+					  t.join(new AVLNode(x, info), t == parts[0] ? parts[1] : parts[0]);
+				  }
+				  verify(t, ref);
+			  }
+		  }
+	  }
+
+	  private static void lazyOps(int rounds, long seed) {
+		  for(BalancePolicy policy : BalancePolicy.values()) {
+			  randomOps(() -> {
+				  AVLTree t = new AVLTree(policy);
+				  t.setLazyDelete(true);
+				  return t;
+			  }, rounds, seed);
+		  }
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  t.setLazyDelete(true);
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int op = 0; op < 500; op++) {
+				  int k = rnd.nextInt(100); // few keys, so deleted keys come back often
+				  int c = rnd.nextInt(20);
+				  if(c < 8) {
+					  t.insert(k, "l" + op);
+					  ref.putIfAbsent(k, "l" + op);
+				  }
+				  else if(c < 16) {
+					  t.delete(k);
+					  ref.remove(k);
+				  }
+				  else if(c < 18) { // unlinks revived nodes whose keys are still pending
+					  Map.Entry<Integer, String> e = ref.pollFirstEntry();
+					  check(Objects.equals(t.pollFirst(), e == null ? null : e.getValue()), "lazy pollFirst", -1);
+				  }
+				  else {
+					  int tombstones = t.tombstoneCount();
+					  int removed = t.compact(c == 18 ? 3 : Integer.MAX_VALUE);
+					  check(removed <= tombstones && t.tombstoneCount() == tombstones - removed, "compact count", removed);
+					  check(c == 18 ? removed == Math.min(3, tombstones) : t.tombstoneCount() == 0, "compact removed", removed);
+				  }
+				  int nodes = t.size() + t.tombstoneCount();
+				  check(t.pendingCount <= nodes, "pending keys " + t.pendingCount, nodes); // one per flagged node
+				  verify(t, ref);
+			  }
+			  t.setLazyDelete(false); // purges what is left
+			  check(t.tombstoneCount() == 0 && t.pendingCount == 0, "lazy off", t.tombstoneCount());
+			  verify(t, ref);
+		  }
+		  // polling revived nodes must not leave their keys pending after they are gone
+		  AVLTree t = new AVLTree();
+		  t.setLazyDelete(true);
+		  for(int k = 0; k < 100; k++) {
+			  t.insert(k, "s");
+		  }
+		  for(int op = 0; op < 10000; op++) {
+			  t.delete(0);
+			  t.insert(0, "s");
+			  t.pollFirst();
+			  t.insert(0, "s");
+			  check(t.pendingCount <= t.size() + t.tombstoneCount(), "pending keys " + t.pendingCount, op);
+		  }
+	  }
+
+	  private static void poolOps(int rounds, long seed) {
+		  ArrayList<AVLTree> trees = new ArrayList<AVLTree>();
+		  randomOps(() -> {
+			  AVLTree t = new AVLTree();
+			  t.enableNodePool(8); // small, so it is often empty and often full
+			  trees.add(t);
+			  return t;
+		  }, rounds, seed);
+		  long hits = 0;
+		  for(AVLTree t : trees) {
+			  hits += t.getPoolHits(); // the trees split from t share its pool and its counts
+		  }
+		  check(hits > 0, "pool never reused a node", -1);
+	  }
+
+	  private static void frozenOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  int space = rnd.nextInt(1000) + 1;
+			  for(int j = rnd.nextInt(300); j > 0; j--) { // empty trees too
+				  int k = rnd.nextInt(space);
+				  t.insert(k, "f" + k);
+				  ref.put(k, "f" + k);
+			  }
+			  FrozenAVLTree frozen = t.freeze();
+			  verify(t, ref);
+			  check(frozen.size() == ref.size() && frozen.empty() == ref.isEmpty(), "frozen size", frozen.size());
+			  int[] probes = new int[space + 4];
+			  for(int k = -2; k < space + 2; k++) {
+				  Integer ceiling = ref.ceilingKey(k);
+				  Integer floor = ref.floorKey(k);
+				  check(Objects.equals(frozen.search(k), ref.get(k)), "frozen search", k);
+				  check(frozen.ceilingKey(k) == (ceiling == null ? -1 : ceiling), "frozen ceilingKey", k);
+				  check(frozen.floorKey(k) == (floor == null ? -1 : floor), "frozen floorKey", k);
+				  check(frozen.rank(k) == ref.headMap(k).size(), "frozen rank", k);
+				  probes[k + 2] = rnd.nextInt(space + 4) - 2; // unsorted, with repeats
+			  }
+			  String[] out = new String[probes.length];
+			  frozen.searchBatch(probes, out);
+			  for(int j = 0; j < probes.length; j++) {
+				  check(Objects.equals(out[j], ref.get(probes[j])), "frozen searchBatch", probes[j]);
+			  }
+		  }
+	  }
+
+	  private static void batchOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  int space = rnd.nextInt(1000) + 1;
+			  for(int j = rnd.nextInt(400); j > 0; j--) {
+				  int k = rnd.nextInt(space);
+				  t.insert(k, "b" + k);
+				  ref.put(k, "b" + k);
+			  }
+			  int[] probes = new int[rnd.nextInt(200)]; // empty batches too
+			  for(int j = 0; j < probes.length; j++) {
+				  probes[j] = rnd.nextInt(space + 10) - 5;
+			  }
+			  Arrays.sort(probes);
+			  String[] out = new String[probes.length];
+			  t.searchAll(probes, out);
+			  BitSet found = t.containsAll(probes);
+			  for(int j = 0; j < probes.length; j++) {
+				  check(Objects.equals(out[j], ref.get(probes[j])), "searchAll", probes[j]);
+				  check(found.get(j) == ref.containsKey(probes[j]), "containsAll", probes[j]);
+			  }
+			  check(found.length() <= probes.length, "containsAll bits", found.length());
+		  }
+	  }
+
+	  private static void queueOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree(BalancePolicy.values()[round % 2]);
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int op = 0; op < 300; op++) {
+				  int c = rnd.nextInt(20);
+				  if(c < 10) {
+					  int k = rnd.nextInt(1000);
+					  t.insert(k, "q" + k);
+					  ref.putIfAbsent(k, "q" + k);
+				  }
+				  else if(c < 13) {
+					  Map.Entry<Integer, String> e = ref.pollFirstEntry();
+					  check(Objects.equals(t.pollFirst(), e == null ? null : e.getValue()), "pollFirst", -1);
+				  }
+				  else if(c < 16) {
+					  Map.Entry<Integer, String> e = ref.pollLastEntry();
+					  check(Objects.equals(t.pollLast(), e == null ? null : e.getValue()), "pollLast", -1);
+				  }
+				  else if(c < 18) {
+					  check(t.peekFirstKey() == (ref.isEmpty() ? -1 : ref.firstKey()), "peekFirstKey", t.peekFirstKey());
+					  check(t.peekLastKey() == (ref.isEmpty() ? -1 : ref.lastKey()), "peekLastKey", t.peekLastKey());
+				  }
+				  else {
+					  int n = rnd.nextInt(20);
+					  ArrayList<String> drained = new ArrayList<String>();
+					  int cnt = t.drainFirst(n, (key, info) -> {
+						  Map.Entry<Integer, String> e = ref.pollFirstEntry();
+						  check(e.getKey() == key && e.getValue().equals(info), "drainFirst order", key);
+						  check(t.search(key) == null, "drainFirst deletes before sink", key);
+						  drained.add(info);
+					  });
+					  check(cnt == drained.size() && (cnt == n || ref.isEmpty()), "drainFirst count", cnt);
+				  }
+				  verify(t, ref);
+			  }
+		  }
+	  }
+
+	  private static void partitionOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree(BalancePolicy.values()[round % 2]);
+			  if(round % 3 == 0) {
+				  t.enableNodePool(4);
+			  }
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int j = rnd.nextInt(200); j > 0; j--) {
+				  int k = rnd.nextInt(1000);
+				  t.insert(k, "p" + k);
+				  ref.put(k, "p" + k);
+			  }
+			  int k = rnd.nextInt(12) + 1; // more parts than items too
+			  AVLTree[] parts = t.partition(k);
+			  check(parts.length == k && t.empty(), "partition result", k);
+			  Integer[] keys = ref.keySet().toArray(new Integer[0]);
+			  int from = 0;
+			  for(int i = 0; i < k; i++) {
+				  int partSize = keys.length / k + (i < keys.length % k ? 1 : 0);
+				  TreeMap<Integer, String> part = new TreeMap<Integer, String>();
+				  for(int j = from; j < from + partSize; j++) {
+					  part.put(keys[j], ref.get(keys[j]));
+				  }
+				  from += partSize;
+				  verify(parts[i], part);
+				  check((parts[i].pool == null) == (t.pool == null), "partition pool", i);
+				  for(int j = 0; j < i; j++) {
+					  check(t.pool == null || parts[i].pool != parts[j].pool, "partition shares a pool", i);
+				  }
+			  }
+		  }
+		  boolean thrown = false;
+		  try {
+			  new AVLTree().partition(0);
+		  }
+		  catch(IllegalArgumentException e) {
+			  thrown = true;
+		  }
+		  check(thrown, "partition(0)", 0);
+	  }
+
+	  private static void persistentOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  PersistentAVLTree t = PersistentAVLTree.emptyTree();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  PersistentAVLTree old = t;
+			  TreeMap<Integer, String> oldRef = new TreeMap<Integer, String>();
+			  int space = rnd.nextInt(300) + 1;
+			  for(int op = 0; op < 200; op++) {
+				  int k = rnd.nextInt(space);
+				  if(rnd.nextInt(3) > 0) {
+					  t = t.insert(k, "r" + op); // replaces the info of a present key
+					  ref.put(k, "r" + op);
+				  }
+				  else {
+					  t = t.delete(k);
+					  ref.remove(k);
+				  }
+				  if(op % 50 == 0) {
+					  verifyPersistent(old, oldRef, space);
+					  old = t;
+					  oldRef = new TreeMap<Integer, String>(ref);
+				  }
+			  }
+			  verifyPersistent(t, ref, space);
+			  verifyPersistent(old, oldRef, space);
+		  }
+	  }
+
+	  private static void verifyPersistent(PersistentAVLTree t, TreeMap<Integer, String> ref, int space) {
+		  checkPersistentNode(t.root);
+		  check(t.size() == ref.size() && t.empty() == ref.isEmpty(), "persistent size", t.size());
+		  FrozenAVLTree frozen = t.freeze();
+		  for(int k = -1; k <= space; k++) {
+			  Integer ceiling = ref.ceilingKey(k);
+			  Integer floor = ref.floorKey(k);
+			  check(Objects.equals(t.search(k), ref.get(k)), "persistent search", k);
+			  check(t.ceilingKey(k) == (ceiling == null ? -1 : ceiling), "persistent ceilingKey", k);
+			  check(t.floorKey(k) == (floor == null ? -1 : floor), "persistent floorKey", k);
+			  check(t.rank(k) == ref.headMap(k).size(), "persistent rank", k);
+			  check(Objects.equals(frozen.search(k), ref.get(k)), "persistent freeze", k);
+		  }
+	  }
+
+	  /**
+	   * @return the height of node, after checking its subtree
+	   */
+	  private static int checkPersistentNode(PersistentAVLTree.Node node) {
+		  if(node == null) {
+			  return -1;
+		  }
+		  check(node.left == null || node.left.key < node.key, "persistent left order", node.key);
+		  check(node.right == null || node.right.key > node.key, "persistent right order", node.key);
+		  int l = checkPersistentNode(node.left);
+		  int r = checkPersistentNode(node.right);
+		  check(Math.abs(l - r) <= 1 && node.height == Math.max(l, r) + 1, "persistent AVL balance", node.key);
+		  check(node.size == PersistentAVLTree.size(node.left) + PersistentAVLTree.size(node.right) + 1, "persistent size", node.key);
+		  return node.height;
+	  }
+
+	  private static void pipelineOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int k = 0; k < 100; k += 3) {
+				  t.insert(k, "w" + k);
+				  ref.put(k, "w" + k);
+			  }
+			  // one producer: results and snapshots follow the sequential tree
+			  try(WritePipeline pipeline = new WritePipeline(t, rnd.nextInt(8) + 1, rnd.nextInt(16) + 1)) {
+				  check(pipeline.snapshot().size() == ref.size(), "pipeline first snapshot", ref.size());
+				  ArrayList<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+				  ArrayList<Boolean> expectFail = new ArrayList<Boolean>();
+				  int[] keys = new int[300];
+				  for(int op = 0; op < keys.length; op++) {
+					  int k = rnd.nextInt(150);
+					  keys[op] = k;
+					  if(rnd.nextBoolean()) {
+						  expectFail.add(ref.containsKey(k));
+						  ref.putIfAbsent(k, "w" + op);
+						  futures.add(pipeline.insert(k, "w" + op));
+					  }
+					  else {
+						  expectFail.add(!ref.containsKey(k));
+						  ref.remove(k);
+						  futures.add(pipeline.delete(k));
+					  }
+				  }
+				  for(int op = 0; op < keys.length; op++) {
+					  check((futures.get(op).join() == -1) == expectFail.get(op), "pipeline result", keys[op]);
+				  }
+				  PersistentAVLTree snapshot = pipeline.snapshot(); // holds every completed change
+				  check(snapshot.size() == ref.size(), "pipeline snapshot size", snapshot.size());
+				  for(int k = 0; k < 150; k++) {
+					  check(Objects.equals(snapshot.search(k), ref.get(k)), "pipeline snapshot", k);
+				  }
+			  }
+			  verify(t, ref);
+			  // several producers on disjoint keys: the same tree whatever the interleaving
+			  AVLTree shared = new AVLTree();
+			  TreeMap<Integer, String> sharedRef = new TreeMap<Integer, String>();
+			  Thread[] producers = new Thread[3];
+			  try(WritePipeline pipeline = new WritePipeline(shared, 4, 8)) {
+				  for(int p = 0; p < producers.length; p++) {
+					  int base = p * 1000;
+					  producers[p] = new Thread(() -> {
+						  for(int k = base; k < base + 200; k++) {
+							  pipeline.insert(k, "m" + k);
+						  }
+						  for(int k = base; k < base + 200; k += 2) {
+							  pipeline.delete(k);
+						  }
+					  });
+					  producers[p].start();
+					  for(int k = base + 1; k < base + 200; k += 2) {
+						  sharedRef.put(k, "m" + k);
+					  }
+				  }
+				  for(Thread producer : producers) {
+					  try {
+						  producer.join();
+					  }
+					  catch(InterruptedException e) {
+						  throw new IllegalStateException(e);
+					  }
+				  }
+			  }
+			  verify(shared, sharedRef);
+		  }
+	  }
+
+	  private static void arenaOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  String[] values = {"ok", "error", "tenant-\u00e4\u20ac", "", null};
+		  ValueArena shared = new ValueArena();
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  t.useValueArena(shared);
+			  if(round % 2 == 0) {
+				  t.enableNodePool(4);
+			  }
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int op = 0; op < 300; op++) {
+				  int k = rnd.nextInt(200);
+				  int c = rnd.nextInt(20);
+				  if(c < 10) {
+					  String value = values[rnd.nextInt(values.length)];
+					  String info = value == null ? null : value + rnd.nextInt(20);
+					  if(t.insert(k, info) != -1) {
+						  ref.put(k, info);
+					  }
+				  }
+				  else if(c < 18) {
+					  t.delete(k);
+					  ref.remove(k);
+				  }
+				  else { // pooled nodes freed under one setting are reused under the other
+					  t.useValueArena(c == 18 ? null : new ValueArena());
+				  }
+				  check(Objects.equals(t.search(k), ref.get(k)), "arena search", k);
+				  ByteBuffer bytes = t.searchBytes(k);
+				  String info = ref.get(k);
+				  check((bytes == null) == (info == null), "searchBytes null", k);
+				  if(bytes != null) {
+					  check(bytes.isReadOnly() && bytes.equals(ByteBuffer.wrap(info.getBytes(StandardCharsets.UTF_8))), "searchBytes", k);
+				  }
+			  }
+			  verify(t, ref);
+		  }
+		  int size = shared.size();
+		  int handle = shared.intern("ok1");
+		  check(shared.intern("ok1") == handle && "ok1".equals(shared.decode(handle)), "arena intern", handle);
+		  check(shared.size() == size && shared.intern(null) == -1 && shared.decode(-1) == null && shared.bytes(-1) == null, "arena null", -1);
+	  }
+
+	  private static void publisherOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  AVLTree t = new AVLTree();
+			  t.setLazyDelete(round % 2 == 0); // scans skip tombstones
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  for(int j = rnd.nextInt(400); j > 0; j--) {
+				  int k = rnd.nextInt(500);
+				  t.insert(k, "g" + k);
+				  ref.put(k, "g" + k);
+			  }
+			  for(int j = rnd.nextInt(100); j > 0; j--) {
+				  int k = rnd.nextInt(500);
+				  t.delete(k);
+				  ref.remove(k);
+			  }
+			  int lo = rnd.nextInt(520) - 10;
+			  int hi = lo + rnd.nextInt(300) - 20; // empty ranges too
+			  int cancelAfter = rnd.nextInt(4) == 0 ? rnd.nextInt(50) + 1 : -1;
+			  RangeRecorder recorder = new RangeRecorder(rnd, cancelAfter);
+			  t.rangePublisher(lo, hi).subscribe(recorder);
+			  ArrayList<Map.Entry<Integer, String>> expected = new ArrayList<Map.Entry<Integer, String>>();
+			  if(lo <= hi) {
+				  expected.addAll(ref.subMap(lo, true, hi, true).entrySet());
+			  }
+			  if(cancelAfter >= 0 && cancelAfter < expected.size()) {
+				  expected.subList(cancelAfter, expected.size()).clear();
+				  check(recorder.completed == 0, "publisher completed after cancel", lo);
+			  }
+			  else {
+				  check(recorder.completed == 1, "publisher completed " + recorder.completed + " times", lo);
+			  }
+			  check(recorder.error == null && recorder.items.size() == expected.size(), "publisher items", lo);
+			  for(int j = 0; j < expected.size(); j++) {
+				  Entry e = recorder.items.get(j);
+				  check(e.getKey() == expected.get(j).getKey() && e.getValue().equals(expected.get(j).getValue()), "publisher order", e.getKey());
+			  }
+		  }
+		  RangeRecorder recorder = new RangeRecorder(rnd, -1);
+		  recorder.first = 0;
+		  new AVLTree().rangePublisher(0, 10).subscribe(recorder);
+		  check(recorder.error instanceof IllegalArgumentException && recorder.completed == 0, "request(0)", 0);
+	  }
+
+	  /**
+	   * subscriber that asks for a few items at a time, from inside onNext too
+	   */
+	  private static final class RangeRecorder implements Flow.Subscriber<Entry> {
+		  private final Random rnd;
+		  private final int cancelAfter; //items taken before cancelling, -1 for never
+		  private final ArrayList<Entry> items = new ArrayList<Entry>();
+		  private Flow.Subscription subscription;
+		  private long first = 1; //the first request
+		  private long outstanding;
+		  private int completed;
+		  private Throwable error;
+
+		  private RangeRecorder(Random rnd, int cancelAfter) {
+			  this.rnd = rnd;
+			  this.cancelAfter = cancelAfter;
+		  }
+
+		  public void onSubscribe(Flow.Subscription subscription) {
+			  this.subscription = subscription;
+			  this.outstanding = this.first;
+			  subscription.request(this.first);
+		  }
+
+		  public void onNext(Entry item) {
+			  check(this.outstanding > 0 && this.completed == 0, "publisher sent more than requested", item.getKey());
+			  this.items.add(item);
+			  this.outstanding--;
+			  if(this.items.size() == this.cancelAfter) {
+				  this.subscription.cancel();
+			  }
+			  else if(this.outstanding == 0) {
+				  long n = this.rnd.nextInt(100) == 0 ? Long.MAX_VALUE : this.rnd.nextInt(70) + 1;
+				  this.outstanding = n;
+				  this.subscription.request(n);
+			  }
+		  }
+
+		  public void onError(Throwable error) {
+			  this.error = error;
+		  }
+
+		  public void onComplete() {
+			  this.completed++;
+		  }
+	  }
+
+	  private static void shapeOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  BalancePolicy policy = BalancePolicy.values()[round % 2];
+			  AVLTree t = new AVLTree(policy);
+			  for(int j = rnd.nextInt(500); j > 0; j--) {
+				  t.insert(rnd.nextInt(1000), "h");
+			  }
+			  for(int j = rnd.nextInt(300); j > 0; j--) {
+				  t.delete(rnd.nextInt(1000));
+			  }
+			  ShapeReport report = t.shapeReport();
+			  int[] histogram = new int[Math.max(0, t.getRoot().getHeight() + 1)];
+			  int minLeaf = -1;
+			  int maxLeaf = -1;
+			  for(int k : t.keysToArray()) {
+				  IAVLNode node = t.findNode(k);
+				  int d = depth(node);
+				  histogram[d]++;
+				  if(node.getLeft().getKey() == -1 && node.getRight().getKey() == -1) {
+					  minLeaf = minLeaf == -1 ? d : Math.min(minLeaf, d);
+					  maxLeaf = Math.max(maxLeaf, d);
+				  }
+			  }
+			  int n = t.size();
+			  check(report.nodes() == n && report.height() == t.getRoot().getHeight(), "shape nodes/height", n);
+			  check(report.minLeafDepth() == minLeaf && report.maxLeafDepth() == maxLeaf, "shape leaf depths", n);
+			  check(report.optimalHeight() == (n == 0 ? -1 : (int) Math.floor(Math.log(n) / Math.log(2) + 1e-9)), "shape optimal", n);
+			  check(report.heightRatio() >= 1.0, "shape ratio", n);
+			  int[] reported = report.depthHistogram();
+			  if(policy == BalancePolicy.AVL) { // the rank is the height, and leaves are at least half as deep
+				  check(Arrays.equals(reported, histogram), "shape histogram", n);
+				  check(n == 0 || (maxLeaf == report.height() && 2 * minLeaf >= maxLeaf - 1), "AVL leaf depths", n);
+				  check(report.heightRatio() <= 1.45, "AVL height ratio", n);
+			  }
+			  else { // a WAVL rank may run above the depth
+				  check(Arrays.equals(reported, Arrays.copyOf(histogram, reported.length)), "shape histogram", n);
+				  check(reported.length <= histogram.length, "shape depth over rank", n);
+			  }
+		  }
+	  }
+
+	  private static void sequenceOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  ArrayList<String> ref = new ArrayList<String>();
+			  for(int j = rnd.nextInt(50); j > 0; j--) {
+				  ref.add("a" + j);
+			  }
+			  AVLSequence seq = AVLSequence.fromArray(ref.toArray(new String[0]));
+			  verifySequence(seq, ref);
+			  for(int op = 0; op < 300; op++) {
+				  int c = rnd.nextInt(20);
+				  if(c < 8) {
+					  int i = rnd.nextInt(ref.size() + 1);
+					  seq.insertAt(i, "s" + op);
+					  ref.add(i, "s" + op);
+				  }
+				  else if(c < 13 && !ref.isEmpty()) {
+					  int i = rnd.nextInt(ref.size());
+					  check(seq.removeAt(i).equals(ref.remove(i)), "sequence removeAt", i);
+				  }
+				  else if(c < 17 && !ref.isEmpty()) {
+					  int i = rnd.nextInt(ref.size());
+					  check(seq.get(i).equals(ref.get(i)), "sequence get", i);
+				  }
+				  else {
+					  int i = rnd.nextInt(ref.size() + 1);
+					  AVLSequence[] parts = seq.splitAt(i);
+					  verifySequence(parts[0], ref.subList(0, i));
+					  verifySequence(parts[1], ref.subList(i, ref.size()));
+					  parts[0].concat(parts[1]);
+					  check(parts[1].empty(), "sequence concat empties", i);
+					  seq = parts[0];
+				  }
+				  verifySequence(seq, ref);
+			  }
+			  boolean thrown = false;
+			  try {
+				  seq.get(ref.size());
+			  }
+			  catch(IndexOutOfBoundsException e) {
+				  thrown = true;
+			  }
+			  check(thrown, "sequence index check", ref.size());
+		  }
+	  }
+
+	  private static void verifySequence(AVLSequence seq, List<String> ref) {
+		  IAVLNode root = seq.getRoot();
+		  check(!root.isRealNode() || root.getParent() == null, "sequence root parent", -1);
+		  checkSequenceNode(root);
+		  check(seq.size() == ref.size(), "sequence size", seq.size());
+		  check(seq.empty() == ref.isEmpty(), "sequence empty", seq.size());
+		  check(Arrays.asList(seq.toArray()).equals(ref), "sequence items", -1);
+	  }
+
+	  /**
+	   * @return the height of node, after checking its subtree (positions take the place of keys)
+	   */
+	  private static int checkSequenceNode(IAVLNode node) {
+		  if(!node.isRealNode()) {
+			  return -1;
+		  }
+		  IAVLNode left = node.getLeft();
+		  IAVLNode right = node.getRight();
+		  check(!left.isRealNode() || left.getParent() == node, "sequence left link", node.getSize());
+		  check(!right.isRealNode() || right.getParent() == node, "sequence right link", node.getSize());
+		  int l = checkSequenceNode(left);
+		  int r = checkSequenceNode(right);
+		  int h = node.getHeight();
+		  check(Math.abs(l - r) <= 1 && h == Math.max(l, r) + 1, "sequence AVL balance", node.getSize());
+		  check(node.getSize() == left.getSize() + right.getSize() + 1, "sequence size", node.getSize());
+		  return h;
+	  }
+
+	  private static void blockOps(int rounds, long seed) {
+		  Random rnd = new Random(seed);
+		  for(int round = 0; round < rounds; round++) {
+			  BlockAVLTree t = new BlockAVLTree();
+			  TreeMap<Integer, String> ref = new TreeMap<Integer, String>();
+			  int space = rnd.nextInt(2000) + 2; // several blocks, so merges and splits of blocks happen
+			  for(int op = 0; op < 1000; op++) {
+				  int c = rnd.nextInt(20);
+				  int k = rnd.nextInt(space);
+				  if(c < 10) {
+					  String info = "v" + k + "." + op;
+					  check((t.insert(k, info) == -1) == ref.containsKey(k), "block insert result", k);
+					  ref.putIfAbsent(k, info);
+				  }
+				  else if(c < 17) {
+					  check((t.delete(k) == -1) == !ref.containsKey(k), "block delete result", k);
+					  ref.remove(k);
+				  }
+				  else if(c < 19) {
+					  check(Objects.equals(t.search(k), ref.get(k)), "block search", k);
+				  }
+				  else if(!ref.isEmpty()) {
+					  Integer[] keys = ref.keySet().toArray(new Integer[0]);
+					  int x = keys[rnd.nextInt(keys.length)];
+					  String info = ref.get(x);
+					  BlockAVLTree[] parts = t.split(x);
+					  verifyBlocks(parts[0], new TreeMap<Integer, String>(ref.headMap(x)));
+					  verifyBlocks(parts[1], new TreeMap<Integer, String>(ref.tailMap(x, false)));
+					  t = rnd.nextBoolean() ? parts[0] : parts[1];
+					  t.join(new AVLNode(x, info), t == parts[0] ? parts[1] : parts[0]);
+				  }
+				  verifyBlocks(t, ref);
+			  }
+		  }
+	  }
+
+	  private static void verifyBlocks(BlockAVLTree t, TreeMap<Integer, String> ref) {
+		  BlockAVLTree.Block root = t.root;
+		  check(root == null || root.left != null || root.right != null || root.count > 0, "lone block empty", -1);
+		  checkBlock(root, root != null && (root.left != null || root.right != null));
+		  check(t.size() == ref.size(), "block size", t.size());
+		  check(t.empty() == ref.isEmpty(), "block empty", t.size());
+		  int[] keys = t.keysToArray();
+		  String[] infos = t.infoToArray();
+		  int j = 0;
+		  for(Map.Entry<Integer, String> e : ref.entrySet()) {
+			  check(keys[j] == e.getKey() && infos[j].equals(e.getValue()), "block in-order item", keys[j]);
+			  j++;
+		  }
+		  check(Objects.equals(t.min(), ref.isEmpty() ? null : ref.firstEntry().getValue()), "block min", -1);
+		  check(Objects.equals(t.max(), ref.isEmpty() ? null : ref.lastEntry().getValue()), "block max", -1);
+	  }
+
+	  /**
+	   * @return the height of block, after checking its subtree
+	   */
+	  private static int checkBlock(BlockAVLTree.Block block, boolean several) {
+		  if(block == null) {
+			  return -1;
+		  }
+		  int l = checkBlock(block.left, several);
+		  int r = checkBlock(block.right, several);
+		  check(Math.abs(l - r) <= 1 && block.height == Math.max(l, r) + 1, "block AVL balance", block.first);
+		  check(block.count <= BlockAVLTree.BLOCK_CAPACITY && block.count >= (several ? BlockAVLTree.BLOCK_MIN : 1),
+				  "block occupancy " + block.count, block.first);
+		  check(block.first == block.keys[0] && block.last == block.keys[block.count - 1], "block bounds", block.first);
+		  for(int j = 1; j < block.count; j++) {
+			  check(block.keys[j - 1] < block.keys[j], "block order", block.keys[j]);
+		  }
+		  check(block.left == null || block.left.last < block.first, "block left range", block.first);
+		  check(block.right == null || block.right.first > block.last, "block right range", block.first);
+		  check(block.size == BlockAVLTree.size(block.left) + BlockAVLTree.size(block.right) + block.count, "block size", block.first);
+		  return block.height;
+	  }
+
+	  private static void verify(AVLTree t, TreeMap<Integer, String> ref) {
+		  IAVLNode root = t.getRoot();
+		  check(root.getKey() == -1 || root.getParent() == null, "root parent", root.getKey());
+		  checkNode(root, t.getBalancePolicy());
+		  int nodes = t.size() + t.tombstoneCount();
+		  check(root.getHeight() <= 2 * (32 - Integer.numberOfLeadingZeros(nodes)), "rank bound", root.getHeight());
+		  check(t.size() == ref.size(), "size", t.size());
+		  check(t.empty() == ref.isEmpty(), "empty", t.size());
+		  int[] keys = t.keysToArray();
+		  String[] infos = t.infoToArray();
+		  int j = 0;
+		  for(Map.Entry<Integer, String> e : ref.entrySet()) {
+			  check(keys[j] == e.getKey() && Objects.equals(infos[j], e.getValue()), "in-order item", keys[j]);
+			  j++;
+		  }
+		  check(Objects.equals(t.min(), ref.isEmpty() ? null : ref.firstEntry().getValue()), "min", -1);
+		  check(Objects.equals(t.max(), ref.isEmpty() ? null : ref.lastEntry().getValue()), "max", -1);
+	  }
+
+	  /**
+	   * @return the height of node, after checking its subtree
+	   */
+	  private static int checkNode(IAVLNode node, BalancePolicy policy) {
+		  if(node.getKey() == -1) {
+			  return -1;
+		  }
+		  IAVLNode left = node.getLeft();
+		  IAVLNode right = node.getRight();
+		  check(left.getKey() == -1 || (left.getParent() == node && left.getKey() < node.getKey()), "left link", node.getKey());
+		  check(right.getKey() == -1 || (right.getParent() == node && right.getKey() > node.getKey()), "right link", node.getKey());
+		  int l = checkNode(left, policy);
+		  int r = checkNode(right, policy);
+		  int h = node.getHeight();
+		  if(policy == BalancePolicy.AVL) {
+			  check(Math.abs(l - r) <= 1 && h == Math.max(l, r) + 1, "AVL balance", node.getKey());
+		  }
+		  else { // rank differences 1 or 2, and a leaf is 1,1
+			  check(h - l >= 1 && h - l <= 2 && h - r >= 1 && h - r <= 2 && (l != -1 || r != -1 || h == 0), "WAVL rank", node.getKey());
+		  }
+		  check(node.getSize() == left.getSize() + right.getSize() + ownSize(node), "size", node.getKey());
+		  return h;
+	  }
+
+	  private static void check(boolean ok, String what, int key) {
+		  if(!ok) {
+			  throw new IllegalStateException(what + " differs at key " + key);
+		  }
+	  }
+  }
+
 }
   